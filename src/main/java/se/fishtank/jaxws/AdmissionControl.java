@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Decides whether a request to an endpoint is accepted as soon as its headers are received,
+ * i.e. before the request body is read.
+ *
+ * @see JaxwsAdmissionHandler
+ *
+ * @author Christer Sandberg
+ */
+public interface AdmissionControl {
+
+    /**
+     * Checks whether a request should be accepted. Requests that aren't accepted
+     * are rejected with {@code 503 Service Unavailable}.
+     * <p/>
+     * Invoked from an I/O thread so implementations must not block.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param request The HTTP request without its content.
+     * @return {@code true} if the request is accepted.
+     */
+    boolean admit(String contextPath, HttpRequest request);
+
+    /**
+     * Invoked once for every accepted request when its response is written
+     * or the connection is closed before that.
+     *
+     * @param contextPath Context path of the endpoint.
+     */
+    void complete(String contextPath);
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * An {@link AdmissionControl} that limits the number of concurrent requests per endpoint.
+ *
+ * @author Christer Sandberg
+ */
+public class ConcurrencyLimit implements AdmissionControl {
+
+    /** Max number of concurrent requests per endpoint. */
+    private final int maxConcurrentRequests;
+
+    /** Number of requests in flight keyed by context path. */
+    private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxConcurrentRequests Max number of concurrent requests per endpoint.
+     */
+    public ConcurrencyLimit(int maxConcurrentRequests) {
+        if (maxConcurrentRequests <= 0)
+            throw new IllegalArgumentException("maxConcurrentRequests must be a positive integer: " + maxConcurrentRequests);
+
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean admit(String contextPath, HttpRequest request) {
+        AtomicInteger counter = counter(contextPath);
+        for (;;) {
+            int current = counter.get();
+            if (current >= maxConcurrentRequests) {
+                rejections.incrementAndGet();
+                return false;
+            }
+
+            if (counter.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void complete(String contextPath) {
+        counter(contextPath).decrementAndGet();
+    }
+
+    /**
+     * Get the number of requests in flight to an endpoint.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @return Number of requests in flight.
+     */
+    public int getInFlight(String contextPath) {
+        AtomicInteger counter = inFlight.get(contextPath);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Get the number of rejected requests.
+     *
+     * @return Number of rejections.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    private AtomicInteger counter(String contextPath) {
+        AtomicInteger counter = inFlight.get(contextPath);
+        if (counter == null) {
+            AtomicInteger created = new AtomicInteger();
+            counter = inFlight.putIfAbsent(contextPath, created);
+            if (counter == null)
+                counter = created;
+        }
+
+        return counter;
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.ws.WebServiceException;
+
+/**
+ * Thrown when one or more endpoints couldn't be created.
+ *
+ * @author Christer Sandberg
+ */
+public class EndpointCreationException extends WebServiceException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Failures keyed by context path. */
+    private final Map<String, Throwable> failures;
+
+    /**
+     * Create a new instance.
+     *
+     * @param failures Failures keyed by context path.
+     */
+    public EndpointCreationException(Map<String, Throwable> failures) {
+        super(createMessage(failures), failures.values().iterator().next());
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<String, Throwable>(failures));
+    }
+
+    /**
+     * Get the failures.
+     *
+     * @return Failures keyed by context path.
+     */
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+
+    private static String createMessage(Map<String, Throwable> failures) {
+        StringBuilder message = new StringBuilder();
+        message.append("Failed to create ").append(failures.size()).append(" endpoint(s):");
+        for (Map.Entry<String, Throwable> entry : failures.entrySet())
+            message.append("\n    ").append(entry.getKey()).append(": ").append(entry.getValue());
+
+        return message.toString();
+    }
+
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.xml.ws.api.BindingID;
+import com.sun.xml.ws.api.server.InstanceResolver;
+import com.sun.xml.ws.api.server.SDDocumentSource;
+import com.sun.xml.ws.api.server.WSEndpoint;
+import com.sun.xml.ws.binding.BindingImpl;
+import com.sun.xml.ws.server.EndpointFactory;
+import com.sun.xml.ws.server.ServerRtException;
+import com.sun.xml.ws.transport.http.HttpAdapter;
+
+/**
+ * Maps context paths to HTTP adapters for JAX-WS endpoints.
+ * <p/>
+ * Endpoints can be {@linkplain #register(String, HttpAdapter) registered} and
+ * {@linkplain #unregister(String, long, TimeUnit) unregistered} at runtime. The mappings
+ * are kept in an immutable map that's replaced on every change, so lookups never lock.
+ *
+ * @author Christer Sandberg
+ */
+public final class EndpointMappings {
+
+    private static final Logger logger = Logger.getLogger(EndpointMappings.class.getName());
+
+    /** Immutable map of registrations keyed by context path, replaced on every change. */
+    private final AtomicReference<Map<String, Registration>> registrations;
+
+    /** Creation times in nanoseconds keyed by context path, synchronized on itself. */
+    private final Map<String, Long> creationTimes;
+
+    /**
+     * Private
+     */
+    private EndpointMappings(Map<String, HttpAdapter> adapters, Map<String, Long> creationTimes) {
+        Map<String, Registration> map = new HashMap<String, Registration>(adapters.size());
+        for (Map.Entry<String, HttpAdapter> entry : adapters.entrySet())
+            map.put(entry.getKey(), new Registration(entry.getKey(), entry.getValue()));
+
+        this.registrations = new AtomicReference<Map<String, Registration>>(Collections.unmodifiableMap(map));
+        this.creationTimes = creationTimes;
+    }
+
+    /**
+     * Create a new instance using one thread per available processor.
+     *
+     * @see EndpointMappings#create(java.util.Map, int)
+     *
+     * @param mappings Endpoint mappings.
+     * @return A new instance.
+     * @throws EndpointCreationException If any of the endpoints couldn't be created.
+     */
+    public static EndpointMappings create(Map<String, Object> mappings) {
+        return create(mappings, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new instance.
+     * <p/>
+     * The specified {@code mappings} maps a context path to an
+     * instance that's annotated with {@link javax.jws.WebService}
+     * or {@link javax.xml.ws.WebServiceProvider}.
+     * <br/>
+     * <pre>
+     *     /foo -> FooWebService
+     * </pre>
+     * The endpoints are created in parallel, and all failures are
+     * reported together once every endpoint has been processed.
+     * If any endpoint fails, or the calling thread is interrupted,
+     * the endpoints that are created are disposed, including those
+     * that are still being created.
+     *
+     * @param mappings Endpoint mappings.
+     * @param parallelism Max number of endpoints to create in parallel.
+     * @return A new instance.
+     * @throws EndpointCreationException If any of the endpoints couldn't be created.
+     */
+    public static EndpointMappings create(Map<String, Object> mappings, int parallelism) {
+        Map<String, Future<HttpAdapter>> futures = new LinkedHashMap<String, Future<HttpAdapter>>(mappings.size());
+        Map<String, Long> creationTimes = Collections.synchronizedMap(new LinkedHashMap<String, Long>(mappings.size()));
+
+        CreatedAdapters created = new CreatedAdapters();
+
+        int threads = Math.max(1, Math.min(parallelism, mappings.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Map.Entry<String, Object> entry : mappings.entrySet()) {
+                futures.put(entry.getKey(), executor.submit(
+                        new Creator(entry.getKey(), entry.getValue(), creationTimes, created)));
+            }
+
+            HashMap<String, HttpAdapter> adapters = new HashMap<String, HttpAdapter>(mappings.size());
+            Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+            for (Map.Entry<String, Future<HttpAdapter>> entry : futures.entrySet()) {
+                try {
+                    adapters.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.put(entry.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failures.put(entry.getKey(), e);
+                }
+            }
+
+            if (!failures.isEmpty()) {
+                // Don't leak the endpoints that were created, those still being created dispose themselves.
+                for (Map.Entry<String, HttpAdapter> entry : created.abandon().entrySet())
+                    dispose(entry.getKey(), entry.getValue());
+
+                throw new EndpointCreationException(failures);
+            }
+
+            return new EndpointMappings(adapters, creationTimes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the HTTP adapter for a context path.
+     *
+     * @param contextPath Context path.
+     * @return The HTTP adapter or {@code null} if none is mapped.
+     */
+    public HttpAdapter get(String contextPath) {
+        Registration registration = registrations.get().get(contextPath);
+        return registration == null ? null : registration.adapter;
+    }
+
+    /**
+     * Get the mapped context paths.
+     *
+     * @return The context paths.
+     */
+    public Set<String> getContextPaths() {
+        return registrations.get().keySet();
+    }
+
+    /**
+     * Map a context path to a HTTP adapter, e.g. one created with
+     * {@link #createEndpointAdapter(Object)}. The adapter should be
+     * ready to handle requests since it's used as soon as it's mapped.
+     *
+     * @param contextPath Context path.
+     * @param adapter HTTP adapter.
+     * @return {@code false} if the context path is already mapped, {@code true} otherwise.
+     */
+    public boolean register(String contextPath, HttpAdapter adapter) {
+        return register(contextPath, adapter, -1);
+    }
+
+    /**
+     * Map a context path to a HTTP adapter and record its creation time.
+     *
+     * @see #register(String, HttpAdapter)
+     *
+     * @param contextPath Context path.
+     * @param adapter HTTP adapter.
+     * @param creationTime Creation time in nanoseconds or {@code -1} if not known.
+     * @return {@code false} if the context path is already mapped, {@code true} otherwise.
+     */
+    boolean register(String contextPath, HttpAdapter adapter, long creationTime) {
+        Registration registration = new Registration(contextPath, adapter);
+        for (;;) {
+            Map<String, Registration> current = registrations.get();
+            if (current.containsKey(contextPath))
+                return false;
+
+            Map<String, Registration> next = new HashMap<String, Registration>(current);
+            next.put(contextPath, registration);
+            if (registrations.compareAndSet(current, Collections.unmodifiableMap(next))) {
+                if (creationTime >= 0)
+                    creationTimes.put(contextPath, creationTime);
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove the mapping for a context path and dispose its endpoint once the requests
+     * in flight are done. New requests to the context path aren't routed to the endpoint.
+     *
+     * @param contextPath Context path.
+     * @param timeout Max time to wait for the requests in flight.
+     * @param unit Time unit of {@code timeout}.
+     * @return {@code true} if the endpoint was disposed within the timeout, {@code false} if
+     *         the context path isn't mapped or requests are still in flight. In the latter
+     *         case the endpoint is disposed when the last request is done.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean unregister(String contextPath, long timeout, TimeUnit unit) throws InterruptedException {
+        Registration registration;
+        for (;;) {
+            Map<String, Registration> current = registrations.get();
+            registration = current.get(contextPath);
+            if (registration == null)
+                return false;
+
+            Map<String, Registration> next = new HashMap<String, Registration>(current);
+            next.remove(contextPath);
+            if (registrations.compareAndSet(current, Collections.unmodifiableMap(next)))
+                break;
+        }
+
+        creationTimes.remove(contextPath);
+        registration.retire();
+        return registration.disposed.await(timeout, unit);
+    }
+
+    /**
+     * Remove all mappings and dispose their endpoints once the requests in flight are done.
+     */
+    public void unregisterAll() {
+        Map<String, Registration> current = registrations.getAndSet(Collections.<String, Registration>emptyMap());
+        creationTimes.clear();
+        for (Registration registration : current.values())
+            registration.retire();
+    }
+
+    /**
+     * Acquire the registration for a context path so it isn't disposed
+     * before it's {@linkplain Registration#release() released}.
+     *
+     * @param contextPath Context path.
+     * @return The registration or {@code null} if none is mapped.
+     */
+    Registration acquire(String contextPath) {
+        Registration registration = registrations.get().get(contextPath);
+        return registration != null && registration.acquire() ? registration : null;
+    }
+
+    /**
+     * Get the time it took to create each mapped endpoint. Endpoints
+     * {@linkplain #register(String, HttpAdapter) registered} with an
+     * adapter created elsewhere aren't included.
+     *
+     * @param unit Time unit of the returned values.
+     * @return Creation times keyed by context path.
+     */
+    public Map<String, Long> getCreationTimes(TimeUnit unit) {
+        synchronized (creationTimes) {
+            Map<String, Long> times = new LinkedHashMap<String, Long>(creationTimes.size());
+            for (Map.Entry<String, Long> entry : creationTimes.entrySet())
+                times.put(entry.getKey(), unit.convert(entry.getValue(), TimeUnit.NANOSECONDS));
+
+            return times;
+        }
+    }
+
+    /**
+     * Dispose the endpoint of an adapter that isn't registered.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param adapter HTTP adapter.
+     */
+    private static void dispose(String contextPath, HttpAdapter adapter) {
+        try {
+            adapter.getEndpoint().dispose();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to dispose endpoint " + contextPath, e);
+        }
+    }
+
+    /**
+     * Create a HTTP adapter for the {@link javax.jws.WebService}
+     * or {@link javax.xml.ws.WebServiceProvider} annotated implementor.
+     *
+     * @param implementor Web Service implementor.
+     * @return A HTTP adapter.
+     */
+    static HttpAdapter createEndpointAdapter(Object implementor) {
+        // Check for WSDL location.
+        Class implType = implementor.getClass();
+        EndpointFactory.verifyImplementorClass(implType);
+        String wsdlLocation = EndpointFactory.getWsdlLocation(implType);
+
+        SDDocumentSource primaryWsdl = null;
+        if (wsdlLocation != null) {
+            ClassLoader cl = implType.getClassLoader();
+            URL wsdlUrl = cl.getResource(wsdlLocation);
+            if (wsdlUrl == null)
+                throw new ServerRtException("cannot.load.wsdl", wsdlLocation);
+
+            primaryWsdl = SDDocumentSource.create(wsdlUrl);
+        }
+
+        WSEndpoint endpoint = WSEndpoint.create(implementor.getClass(), true,
+                InstanceResolver.createSingleton(implementor).createInvoker(),
+                null, null,null,
+                BindingImpl.create(BindingID.parse(implementor.getClass())),
+                primaryWsdl,
+                null, null, true);
+
+        return HttpAdapter.createAlone(endpoint);
+    }
+
+    /**
+     * A mapped HTTP adapter and the requests in flight to it.
+     */
+    static final class Registration {
+
+        final String contextPath;
+
+        final HttpAdapter adapter;
+
+        /** Number of requests in flight. */
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        /** Counted down when the endpoint is disposed. */
+        final CountDownLatch disposed = new CountDownLatch(1);
+
+        final AtomicBoolean disposing = new AtomicBoolean(false);
+
+        volatile boolean retired;
+
+        Registration(String contextPath, HttpAdapter adapter) {
+            this.contextPath = contextPath;
+            this.adapter = adapter;
+        }
+
+        /**
+         * Count a request in flight.
+         *
+         * @return {@code false} if the registration is retired.
+         */
+        boolean acquire() {
+            inFlight.incrementAndGet();
+            if (retired) {
+                release();
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Count a request as done, and dispose the endpoint if it's the last one of a retired registration.
+         */
+        void release() {
+            if (inFlight.decrementAndGet() == 0 && retired)
+                dispose();
+        }
+
+        /**
+         * Retire the registration, and dispose the endpoint if no requests are in flight.
+         */
+        void retire() {
+            retired = true;
+            if (inFlight.get() == 0)
+                dispose();
+        }
+
+        private void dispose() {
+            if (!disposing.compareAndSet(false, true))
+                return;
+
+            try {
+                adapter.getEndpoint().dispose();
+                if (logger.isLoggable(Level.INFO))
+                    logger.info("Disposed endpoint " + contextPath);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to dispose endpoint " + contextPath, e);
+            } finally {
+                disposed.countDown();
+            }
+        }
+
+    }
+
+    /**
+     * Creates and times a single endpoint.
+     */
+    private static final class Creator implements Callable<HttpAdapter> {
+
+        final String contextPath;
+
+        final Object implementor;
+
+        final Map<String, Long> creationTimes;
+
+        final CreatedAdapters created;
+
+        Creator(String contextPath, Object implementor, Map<String, Long> creationTimes, CreatedAdapters created) {
+            this.contextPath = contextPath;
+            this.implementor = implementor;
+            this.creationTimes = creationTimes;
+            this.created = created;
+        }
+
+        @Override
+        public HttpAdapter call() throws Exception {
+            long start = System.nanoTime();
+            HttpAdapter adapter = createEndpointAdapter(implementor);
+            long elapsed = System.nanoTime() - start;
+
+            if (!created.add(contextPath, adapter)) {
+                // Nobody will use the endpoint since the creation is abandoned.
+                dispose(contextPath, adapter);
+                throw new CancellationException("Creation of endpoint " + contextPath + " abandoned");
+            }
+
+            creationTimes.put(contextPath, elapsed);
+            if (logger.isLoggable(Level.INFO))
+                logger.info("Created endpoint " + contextPath + " in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+
+            return adapter;
+        }
+
+    }
+
+    /**
+     * The adapters created so far. Once the creation is abandoned, adapters
+     * that are created afterwards are disposed by their creators instead.
+     */
+    private static final class CreatedAdapters {
+
+        private final Map<String, HttpAdapter> adapters = new LinkedHashMap<String, HttpAdapter>();
+
+        private boolean abandoned;
+
+        /**
+         * Add a created adapter.
+         *
+         * @return {@code false} if the creation is abandoned.
+         */
+        synchronized boolean add(String contextPath, HttpAdapter adapter) {
+            if (abandoned)
+                return false;
+
+            adapters.put(contextPath, adapter);
+            return true;
+        }
+
+        /**
+         * Abandon the creation.
+         *
+         * @return The adapters created so far, which must be disposed by the caller.
+         */
+        synchronized Map<String, HttpAdapter> abandon() {
+            abandoned = true;
+            return new LinkedHashMap<String, HttpAdapter>(adapters);
+        }
+
+    }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.xml.ws.transport.http.HttpAdapter;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Warms up endpoints by running synthetic requests through their HTTP adapters
+ * before any real traffic is accepted.
+ * <p/>
+ * The requests are sample envelopes added with {@link #addSample}. Endpoints
+ * without samples only get their WSDL requested, which at least loads the
+ * metadata and transport code paths.
+ *
+ * @author Christer Sandberg
+ */
+public final class EndpointWarmup {
+
+    private static final Logger logger = Logger.getLogger(EndpointWarmup.class.getName());
+
+    /** Max number of iterations per endpoint. */
+    private final int iterations;
+
+    /** Max time in nanoseconds to spend per endpoint. */
+    private final long maxTimeNanos;
+
+    /** Sample requests keyed by context path. */
+    private final Map<String, List<Sample>> samples = new HashMap<String, List<Sample>>();
+
+    /**
+     * Create a new instance.
+     *
+     * @param iterations Max number of times to run the samples of each endpoint.
+     * @param maxTime Max time to spend warming up each endpoint.
+     * @param unit Time unit of {@code maxTime}.
+     */
+    public EndpointWarmup(int iterations, long maxTime, TimeUnit unit) {
+        this.iterations = iterations;
+        this.maxTimeNanos = unit.toNanos(maxTime);
+    }
+
+    /**
+     * Add a SOAP 1.1 sample request.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param soapAction The {@code SOAPAction} or {@code null} if none.
+     * @param envelope The SOAP envelope.
+     */
+    public void addSample(String contextPath, String soapAction, byte[] envelope) {
+        addSample(contextPath, "text/xml; charset=utf-8", soapAction, envelope);
+    }
+
+    /**
+     * Add a sample request.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param contentType Content type of the request.
+     * @param soapAction The {@code SOAPAction} or {@code null} if none.
+     * @param envelope The SOAP envelope.
+     */
+    public synchronized void addSample(String contextPath, String contentType, String soapAction, byte[] envelope) {
+        List<Sample> list = samples.get(contextPath);
+        if (list == null) {
+            list = new ArrayList<Sample>();
+            samples.put(contextPath, list);
+        }
+
+        list.add(new Sample(contentType, soapAction, envelope.clone()));
+    }
+
+    /**
+     * Warm up all endpoints.
+     *
+     * @param endpointMappings Endpoint mappings.
+     * @param address Local address the requests are considered received on.
+     */
+    public void run(EndpointMappings endpointMappings, InetSocketAddress address) {
+        for (String contextPath : endpointMappings.getContextPaths())
+            run(contextPath, endpointMappings.get(contextPath), address);
+    }
+
+    /**
+     * Warm up a single endpoint.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param adapter HTTP adapter of the endpoint.
+     * @param address Local address the requests are considered received on.
+     */
+    public void run(String contextPath, HttpAdapter adapter, InetSocketAddress address) {
+        List<Sample> list;
+        synchronized (this) {
+            list = samples.containsKey(contextPath) ?
+                    new ArrayList<Sample>(samples.get(contextPath)) : Collections.<Sample>emptyList();
+        }
+
+        long start = System.nanoTime();
+        int n = 0;
+        try {
+            while (n < iterations && System.nanoTime() - start < maxTimeNanos) {
+                if (list.isEmpty()) {
+                    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, contextPath + "?wsdl");
+                    JaxwsConnection connection = newConnection(adapter, address, request);
+                    adapter.publishWSDL(connection);
+                    if (!isSuccess(contextPath, connection))
+                        return;
+                } else {
+                    for (Sample sample : list) {
+                        JaxwsConnection connection = newConnection(adapter, address, sample.newRequest(contextPath));
+                        adapter.handle(connection);
+                        if (!isSuccess(contextPath, connection))
+                            return;
+                    }
+                }
+
+                n++;
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Warm-up of endpoint " + contextPath + " failed", e);
+            return;
+        }
+
+        if (logger.isLoggable(Level.INFO)) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            logger.info("Warmed up endpoint " + contextPath + " with " + n + " iteration(s) in " + elapsed + " ms");
+        }
+    }
+
+    /**
+     * Checks whether a warm-up request succeeded, and logs a warning if it didn't.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param connection Connection of the request.
+     * @return {@code true} if the response status is 2xx.
+     */
+    private static boolean isSuccess(String contextPath, JaxwsConnection connection) {
+        int status = connection.getStatus();
+        if (status >= 200 && status < 300)
+            return true;
+
+        logger.warning("Warm-up of endpoint " + contextPath + " stopped, a request got status " + status);
+        return false;
+    }
+
+    private static JaxwsConnection newConnection(HttpAdapter adapter, InetSocketAddress address, HttpRequest request) {
+        HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
+        JaxwsRequestUrl jaxwsRequestUrl = JaxwsRequestUrl.newInstance(address, false, request);
+        return new JaxwsConnection(request, response, jaxwsRequestUrl,
+                JaxwsHandler.createDelegate(adapter, jaxwsRequestUrl));
+    }
+
+    /**
+     * A sample request.
+     */
+    private static final class Sample {
+
+        final String contentType;
+
+        final String soapAction;
+
+        final byte[] envelope;
+
+        Sample(String contentType, String soapAction, byte[] envelope) {
+            this.contentType = contentType;
+            this.soapAction = soapAction;
+            this.envelope = envelope;
+        }
+
+        HttpRequest newRequest(String contextPath) {
+            HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, contextPath);
+            request.setHeader(HttpHeaders.Names.CONTENT_TYPE, contentType);
+            request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, envelope.length);
+            if (soapAction != null)
+                request.setHeader("SOAPAction", "\"" + soapAction + "\"");
+
+            request.setContent(ChannelBuffers.wrappedBuffer(envelope));
+            return request;
+        }
+
+    }
+
+}
@@ -5,9 +5,13 @@ package se.fishtank.jaxws;
 
 import java.net.InetSocketAddress;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.sun.xml.ws.transport.http.HttpAdapter;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
@@ -18,6 +22,8 @@ import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 /**
  * A JAX-WS only server.
@@ -26,36 +32,89 @@ import org.jboss.netty.handler.stream.ChunkedWriteHandler;
  */
 public final class JaxWsServer {
 
+    /** Max content length of a request. */
+    private static final int MAX_CONTENT_LENGTH = 65536;
+
     /** Whether the server is started or not. */
     private final AtomicBoolean running = new AtomicBoolean(false);
 
+    /** Request coalescers keyed by context path. */
+    private final Map<String, RequestCoalescer> coalescers = new ConcurrentHashMap<String, RequestCoalescer>();
+
     /** Channel group for all channels. */
     private ChannelGroup channels;
 
+    /** Warm-up to run before binding or {@code null} for none. */
+    private volatile EndpointWarmup warmup;
+
+    /** Buffer factory for child channels or {@code null} for the default. */
+    private volatile ChannelBufferFactory bufferFactory;
+
+    /** Admission control or {@code null} to accept all requests. */
+    private volatile AdmissionControl admissionControl;
+
+    /** Memory budget shared by all connections or {@code null} for none. */
+    private volatile MemoryBudget memoryBudget;
+
+    /** Max time in milliseconds to receive the content of a request or {@code 0} for no limit. */
+    private volatile long requestBodyTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+
+    /** Timer for request body timeouts and requests waiting for coalesced invocations. */
+    private Timer timer;
+
+    /** Address the server is bound to. */
+    private volatile InetSocketAddress address;
+
     /** Bootstrap instance for this server. */
     private ServerBootstrap bootstrap;
 
+    /** Endpoint mappings for this server. */
+    private volatile EndpointMappings endpointMappings;
+
     /**
      * Start the server.
      *
      * @param address Hostname and port.
-     * @param mappings {@linkplain JaxwsHandler#JaxwsHandler(java.util.Map) Endpoint mappings.}
+     * @param mappings {@linkplain EndpointMappings#create(java.util.Map, int) Endpoint mappings.}
      * @return {@code false} if the server is already started, {@code true} otherwise.
+     * @throws EndpointCreationException If any of the endpoints couldn't be created.
      */
-    public boolean start(final InetSocketAddress address, final Map<String, Object> mappings) {
+    public boolean start(InetSocketAddress address, Map<String, Object> mappings) {
         if (running.compareAndSet(false, true)) {
+            // Create and warm up all endpoints so the port isn't bound until they're ready.
+            try {
+                endpointMappings = EndpointMappings.create(mappings);
+                if (warmup != null)
+                    warmup.run(endpointMappings, address);
+            } catch (RuntimeException e) {
+                running.set(false);
+                throw e;
+            }
+
+            this.address = address;
             channels = new DefaultChannelGroup("jax-ws-server");
             bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory());
 
+            // Settings changed while running take effect the next time the server is started.
+            final AdmissionControl admission = admissionControl;
+            final MemoryBudget budget = memoryBudget;
+            final long bodyTimeoutMillis = requestBodyTimeoutMillis;
+            final Timer serverTimer = timer = new HashedWheelTimer();
+
             setBootstrapOptions(bootstrap);
 
             bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
                 @Override
                 public ChannelPipeline getPipeline() throws Exception {
-                    JaxwsHandler handler = new JaxwsHandler(channels, mappings);
+                    JaxwsAdmissionHandler admissionHandler = new JaxwsAdmissionHandler(endpointMappings,
+                            admission, budget, MAX_CONTENT_LENGTH,
+                            bodyTimeoutMillis > 0 ? serverTimer : null, bodyTimeoutMillis, TimeUnit.MILLISECONDS);
+                    JaxwsHandler handler = new JaxwsHandler(channels, endpointMappings, coalescers, serverTimer);
 
-                    return Channels.pipeline(new HttpRequestDecoder(), new HttpChunkAggregator(65536),
-                            new HttpResponseEncoder(), new ChunkedWriteHandler(), handler);
+                    // The admission handler must see requests before they're aggregated and
+                    // responses before they're encoded.
+                    return Channels.pipeline(new HttpRequestDecoder(), new HttpResponseEncoder(), admissionHandler,
+                            new HttpChunkAggregator(MAX_CONTENT_LENGTH), new ChunkedWriteHandler(), handler);
                 }
             });
 
@@ -67,7 +126,7 @@ public final class JaxWsServer {
     }
 
     /**
-     * Stop the server.
+     * Stop the server and dispose its endpoints.
      *
      * @return {@code false} if the server is already stopped, {@code true} otherwise.
      */
@@ -75,11 +134,148 @@ public final class JaxWsServer {
         if (running.compareAndSet(true, false)) {
             channels.close().awaitUninterruptibly();
             bootstrap.releaseExternalResources();
+            timer.stop();
+
+            endpointMappings.unregisterAll();
         }
 
         return false;
     }
 
+    /**
+     * Get the endpoint mappings of a started server.
+     *
+     * @return The endpoint mappings or {@code null} if the server was never started.
+     */
+    public EndpointMappings getEndpointMappings() {
+        return endpointMappings;
+    }
+
+    /**
+     * Create and map an endpoint on a started server without interrupting other endpoints.
+     * <p/>
+     * The endpoint is created, and {@linkplain #setWarmup(EndpointWarmup) warmed up} if a
+     * warm-up is set, before it's mapped, so no request is routed to it until it's ready.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param implementor Instance that's annotated with {@link javax.jws.WebService}
+     *                    or {@link javax.xml.ws.WebServiceProvider}.
+     * @return {@code false} if the context path is already mapped, {@code true} otherwise.
+     * @throws IllegalStateException If the server isn't started.
+     */
+    public boolean register(String contextPath, Object implementor) {
+        EndpointMappings mappings = endpointMappings;
+        if (mappings == null || !running.get())
+            throw new IllegalStateException("The server isn't started");
+
+        if (mappings.get(contextPath) != null)
+            return false;
+
+        long start = System.nanoTime();
+        HttpAdapter adapter = EndpointMappings.createEndpointAdapter(implementor);
+        long creationTime = System.nanoTime() - start;
+        if (warmup != null)
+            warmup.run(contextPath, adapter, address);
+
+        if (!mappings.register(contextPath, adapter, creationTime)) {
+            // Mapped by someone else meanwhile.
+            adapter.getEndpoint().dispose();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove an endpoint, and its {@linkplain #setRequestCoalescer(String, RequestCoalescer)
+     * request coalescer}, from a started server without interrupting other endpoints.
+     *
+     * @see EndpointMappings#unregister(String, long, java.util.concurrent.TimeUnit)
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param timeout Max time to wait for the requests in flight to the endpoint.
+     * @param unit Time unit of {@code timeout}.
+     * @return {@code true} if the endpoint was disposed within the timeout, {@code false} otherwise.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws IllegalStateException If the server isn't started.
+     */
+    public boolean unregister(String contextPath, long timeout, TimeUnit unit) throws InterruptedException {
+        EndpointMappings mappings = endpointMappings;
+        if (mappings == null || !running.get())
+            throw new IllegalStateException("The server isn't started");
+
+        // An endpoint registered later at the same context path mustn't inherit the coalescer.
+        coalescers.remove(contextPath);
+        return mappings.unregister(contextPath, timeout, unit);
+    }
+
+    /**
+     * Warm up the endpoints before binding the port when the server is started.
+     *
+     * @param warmup Endpoint warm-up or {@code null} for none.
+     */
+    public void setWarmup(EndpointWarmup warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * Set the buffer factory for connections, e.g. a {@link PooledChannelBufferFactory}.
+     * Takes effect the next time the server is started.
+     *
+     * @param bufferFactory Buffer factory or {@code null} for the default.
+     */
+    public void setBufferFactory(ChannelBufferFactory bufferFactory) {
+        this.bufferFactory = bufferFactory;
+    }
+
+    /**
+     * Check admission of requests as soon as their headers are received, e.g. with a
+     * {@link ConcurrencyLimit}. Takes effect the next time the server is started.
+     *
+     * @param admissionControl Admission control or {@code null} to accept all requests.
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Limit the bytes of requests and responses in flight across all connections.
+     * Takes effect the next time the server is started.
+     *
+     * @param memoryBudget Memory budget or {@code null} for none.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the max time to receive the content of a request once its headers are received.
+     * A request that times out releases its {@linkplain #setMemoryBudget(MemoryBudget) memory}
+     * and {@linkplain #setAdmissionControl(AdmissionControl) admission}, and its connection is
+     * closed. The default is 30 seconds. Takes effect the next time the server is started.
+     *
+     * @param timeout The timeout or {@code 0} for no limit.
+     * @param unit Time unit of {@code timeout}.
+     */
+    public void setRequestBodyTimeout(long timeout, TimeUnit unit) {
+        this.requestBodyTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Coalesce identical concurrent requests to an endpoint. The coalescer is removed
+     * when the endpoint is {@linkplain #unregister(String, long, TimeUnit) unregistered}.
+     *
+     * @param contextPath Context path of the endpoint.
+     * @param coalescer Request coalescer or {@code null} to disable coalescing.
+     */
+    public void setRequestCoalescer(String contextPath, RequestCoalescer coalescer) {
+        if (coalescer == null) {
+            coalescers.remove(contextPath);
+        } else {
+            coalescers.put(contextPath, coalescer);
+        }
+    }
+
     /**
      * Set server bootstrap options.
      *
@@ -89,6 +285,9 @@ public final class JaxWsServer {
         bootstrap.setOption("child.tcpNoDelay", true);
         bootstrap.setOption("child.keepAlive", true);
         bootstrap.setOption("reuseAddress", true);
+        if (bufferFactory != null)
+            bootstrap.setOption("child.bufferFactory", bufferFactory);
+
         // bootstrap.setOption("receiveBufferSize", 128 * 1024);
         // bootstrap.setOption("sendBufferSize", 128 * 1024);
         // bootstrap.setOption("backlog", 16384);
@@ -0,0 +1,392 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Routes requests and checks {@linkplain AdmissionControl admission} as soon as the
+ * request headers are received, i.e. before the body is aggregated.
+ * <p/>
+ * Must be placed between the {@link HttpRequestDecoder} and the {@link HttpChunkAggregator},
+ * and after the {@link HttpResponseEncoder} so it sees the responses that are written.
+ * The decoder passes on the headers of requests that expect {@code 100 Continue}, and
+ * of large requests, before their content. A request to an unknown context path is
+ * rejected with {@code 404 Not Found}, and a request that isn't admitted with
+ * {@code 503 Service Unavailable}, without reading its content. For an accepted request
+ * the aggregator sends {@code 100 Continue} if the client expects it.
+ * <p/>
+ * A rejected connection is closed, and anything received after the rejection is discarded.
+ * <p/>
+ * With a {@link MemoryBudget} a request that doesn't fit is either rejected, or held back
+ * with reads on its connection suspended until enough memory is released. At most the max
+ * content length of the aggregator is reserved when the headers are received, whatever the
+ * client claims, and content received beyond what's reserved is charged as it arrives.
+ * <p/>
+ * A request whose content isn't received within the request body timeout releases what's
+ * reserved for it, and its connection is closed, so a stalled client can't hold on to memory
+ * or an admission.
+ *
+ * @author Christer Sandberg
+ */
+public class JaxwsAdmissionHandler extends SimpleChannelHandler {
+
+    /** Endpoint mappings. */
+    private final EndpointMappings endpointMappings;
+
+    /** Admission control or {@code null} to accept all requests to known endpoints. */
+    private final AdmissionControl admissionControl;
+
+    /** Memory budget or {@code null} for none. */
+    private final MemoryBudget memoryBudget;
+
+    /** Max content length of a request, i.e. the max reserved when its headers are received. */
+    private final int maxContentLength;
+
+    /** Timer for request body timeouts or {@code null} for none. */
+    private final Timer timer;
+
+    /** Request body timeout in milliseconds. */
+    private final long bodyTimeoutMillis;
+
+    /** Accepted requests without a written response, in request order. */
+    private final Queue<PendingRequest> pending = new ConcurrentLinkedQueue<PendingRequest>();
+
+    /** Messages held back while waiting for memory. Only used from the I/O thread. */
+    private final Queue<MessageEvent> parked = new LinkedList<MessageEvent>();
+
+    /** The request whose content is being received. Only used from the I/O thread. */
+    private PendingRequest current;
+
+    /** Whether a request on this connection has been rejected. */
+    private volatile boolean rejected;
+
+    /**
+     * Create a new instance without a memory budget or request body timeout.
+     *
+     * @param endpointMappings Endpoint mappings.
+     * @param admissionControl Admission control or {@code null} to accept all requests to known endpoints.
+     */
+    public JaxwsAdmissionHandler(EndpointMappings endpointMappings, AdmissionControl admissionControl) {
+        this(endpointMappings, admissionControl, null, Integer.MAX_VALUE, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param endpointMappings Endpoint mappings.
+     * @param admissionControl Admission control or {@code null} to accept all requests to known endpoints.
+     * @param memoryBudget Memory budget shared by all connections or {@code null} for none.
+     * @param maxContentLength Max content length of the {@link HttpChunkAggregator}.
+     * @param timer Timer for request body timeouts or {@code null} for none.
+     * @param bodyTimeout Max time to receive the content of a request once its headers are received.
+     * @param unit Time unit of {@code bodyTimeout}.
+     */
+    public JaxwsAdmissionHandler(EndpointMappings endpointMappings, AdmissionControl admissionControl,
+                                 MemoryBudget memoryBudget, int maxContentLength,
+                                 Timer timer, long bodyTimeout, TimeUnit unit) {
+        this.endpointMappings = endpointMappings;
+        this.admissionControl = admissionControl;
+        this.memoryBudget = memoryBudget;
+        this.maxContentLength = maxContentLength;
+        this.timer = timer;
+        this.bodyTimeoutMillis = unit.toMillis(bodyTimeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (rejected)
+            return;
+
+        // Keep the order of messages received in the same read as a held back request.
+        if (!parked.isEmpty()) {
+            parked.offer(e);
+            return;
+        }
+
+        if (!process(ctx, e)) {
+            parked.offer(e);
+            ctx.getChannel().setReadable(false);
+            memoryBudget.suspended();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof HttpResponse) {
+            final PendingRequest request = pending.poll();
+            final long responseBytes = ((HttpResponse) e.getMessage()).getContent().readableBytes();
+            if (memoryBudget != null)
+                memoryBudget.reserve(responseBytes);
+
+            e.getFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (request != null)
+                        request.complete();
+
+                    if (memoryBudget != null)
+                        memoryBudget.release(responseBytes);
+                }
+            });
+        }
+
+        ctx.sendDownstream(e);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        parked.clear();
+
+        PendingRequest request;
+        while ((request = pending.poll()) != null)
+            request.complete();
+
+        ctx.sendUpstream(e);
+    }
+
+    /**
+     * Route, admit and account for a received message.
+     *
+     * @param ctx Channel handler context.
+     * @param e The message event.
+     * @return {@code false} if the message must wait until {@link #resume(ChannelHandlerContext)}
+     *         is scheduled when memory is released, {@code true} otherwise.
+     */
+    private boolean process(ChannelHandlerContext ctx, MessageEvent e) {
+        Object message = e.getMessage();
+        if (message instanceof HttpChunk) {
+            HttpChunk chunk = (HttpChunk) message;
+            if (current != null) {
+                current.received(chunk.getContent().readableBytes());
+                if (chunk.isLast())
+                    current.cancelBodyTimeout();
+            }
+
+            ctx.sendUpstream(e);
+            return true;
+        }
+
+        if (!(message instanceof HttpRequest)) {
+            ctx.sendUpstream(e);
+            return true;
+        }
+
+        HttpRequest request = (HttpRequest) message;
+        String contextPath = JaxwsRequestUrl.getContextPath(request.getUri());
+        String lookup = contextPath.isEmpty() ? "/" : contextPath;
+        if (endpointMappings.get(lookup) == null) {
+            JaxwsEvents.routeResolved(e.getChannel(), lookup, false);
+            reject(ctx, request, HttpResponseStatus.NOT_FOUND);
+            return true;
+        }
+
+        // The content of a chunked request beyond its known length, or the max content length,
+        // is reserved as it's received.
+        long length = request.isChunked() ?
+                HttpHeaders.getContentLength(request, 0) : request.getContent().readableBytes();
+        long bytes = Math.min(Math.max(length, 0), maxContentLength);
+        if (memoryBudget != null) {
+            if (memoryBudget.isRejectWhenExhausted()) {
+                if (!memoryBudget.tryReserve(bytes)) {
+                    memoryBudget.rejected();
+                    reject(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+                    return true;
+                }
+            } else if (!memoryBudget.reserveOrAwait(bytes, resumer(ctx))) {
+                return false;
+            }
+        }
+
+        boolean admitted = false;
+        if (admissionControl != null) {
+            if (!admissionControl.admit(lookup, request)) {
+                if (memoryBudget != null)
+                    memoryBudget.release(bytes);
+
+                reject(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+                return true;
+            }
+
+            admitted = true;
+        }
+
+        if (memoryBudget != null || admitted) {
+            current = new PendingRequest(lookup, admitted, bytes);
+            pending.offer(current);
+            if (request.isChunked() && timer != null)
+                current.bodyTimeout = timer.newTimeout(bodyTimeoutTask(ctx, current), bodyTimeoutMillis,
+                        TimeUnit.MILLISECONDS);
+        } else {
+            current = null;
+        }
+
+        ctx.sendUpstream(e);
+        return true;
+    }
+
+    /**
+     * Create a callback that processes the held back messages in the I/O thread.
+     *
+     * @param ctx Channel handler context.
+     * @return A new callback.
+     */
+    private Runnable resumer(final ChannelHandlerContext ctx) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ctx.getPipeline().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resume(ctx);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Create a task that gives up on a request whose content isn't received in time.
+     *
+     * @param ctx Channel handler context.
+     * @param request The request.
+     * @return A new task.
+     */
+    private TimerTask bodyTimeoutTask(final ChannelHandlerContext ctx, final PendingRequest request) {
+        return new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                // Release what's reserved right away, the rest is completed when the channel is closed.
+                request.complete();
+                ctx.getChannel().close();
+            }
+        };
+    }
+
+    /**
+     * Process held back messages and resume reading if they've all been processed.
+     *
+     * @param ctx Channel handler context.
+     */
+    private void resume(ChannelHandlerContext ctx) {
+        Channel channel = ctx.getChannel();
+        if (!channel.isOpen())
+            return;
+
+        MessageEvent e;
+        while (!rejected && (e = parked.peek()) != null) {
+            if (!process(ctx, e))
+                return;
+
+            parked.poll();
+        }
+
+        parked.clear();
+        if (!rejected)
+            channel.setReadable(true);
+    }
+
+    /**
+     * Reject a request and close the connection once the response is written.
+     *
+     * @param ctx Channel handler context.
+     * @param request The rejected request.
+     * @param status Response status.
+     */
+    private void reject(ChannelHandlerContext ctx, HttpRequest request, HttpResponseStatus status) {
+        rejected = true;
+
+        DefaultHttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), status);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, 0);
+        response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(ChannelFutureListener.CLOSE);
+        Channels.write(ctx, future, response);
+    }
+
+    /**
+     * An accepted request without a written response.
+     */
+    private final class PendingRequest {
+
+        final String contextPath;
+
+        final boolean admitted;
+
+        /** Reserved bytes. */
+        long bytes;
+
+        /** Received content bytes. */
+        long received;
+
+        /** Whether the response is written, e.g. an error before all content is received. */
+        boolean completed;
+
+        /** Timeout for receiving the content or {@code null} if none. */
+        volatile Timeout bodyTimeout;
+
+        PendingRequest(String contextPath, boolean admitted, long bytes) {
+            this.contextPath = contextPath;
+            this.admitted = admitted;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Count received content and reserve what's beyond the reserved bytes.
+         */
+        synchronized void received(long chunkBytes) {
+            received += chunkBytes;
+            if (completed || memoryBudget == null || received <= bytes)
+                return;
+
+            memoryBudget.reserve(received - bytes);
+            bytes = received;
+        }
+
+        void cancelBodyTimeout() {
+            Timeout timeout = bodyTimeout;
+            if (timeout != null)
+                timeout.cancel();
+        }
+
+        void complete() {
+            long reserved;
+            synchronized (this) {
+                if (completed)
+                    return;
+
+                completed = true;
+                reserved = bytes;
+            }
+
+            cancelBodyTimeout();
+            if (admitted)
+                admissionControl.complete(contextPath);
+
+            if (memoryBudget != null)
+                memoryBudget.release(reserved);
+        }
+
+    }
+
+}
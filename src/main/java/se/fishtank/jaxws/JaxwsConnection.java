@@ -3,7 +3,6 @@
  */
 package se.fishtank.jaxws;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -15,8 +14,11 @@ import com.sun.istack.NotNull;
 import com.sun.xml.ws.api.message.Packet;
 import com.sun.xml.ws.api.server.WebServiceContextDelegate;
 import com.sun.xml.ws.transport.http.WSHTTPConnection;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
@@ -47,6 +49,9 @@ public class JaxwsConnection extends WSHTTPConnection {
     /** The {@link WebServiceContextDelegate} associated with this connection. */
     private final WebServiceContextDelegate webServiceContextDelegate;
 
+    /** Buffer factory for the response content. */
+    private final ChannelBufferFactory bufferFactory;
+
     /** HTTP request headers. */
     private Map<String, List<String>> requestHeaders;
 
@@ -56,6 +61,12 @@ public class JaxwsConnection extends WSHTTPConnection {
     /** Response output stream. */
     private ResponseOutputStream outputStream;
 
+    /**
+     * Response status or {@code 0} if not set, which lets JAX-WS choose e.g.
+     * {@code 500} for faults and {@code 202} for one-way requests.
+     */
+    private int status;
+
     /**
      * Create a new instance.
      *
@@ -67,10 +78,28 @@ public class JaxwsConnection extends WSHTTPConnection {
     public JaxwsConnection(HttpRequest httpRequest, HttpResponse httpResponse,
                            JaxwsRequestUrl jaxwsRequestUrl,
                            WebServiceContextDelegate webServiceContextDelegate) {
+        this(httpRequest, httpResponse, jaxwsRequestUrl, webServiceContextDelegate,
+                HeapChannelBufferFactory.getInstance());
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param httpRequest HTTP request.
+     * @param httpResponse HTTP response.
+     * @param jaxwsRequestUrl JAX-WS request URL.
+     * @param webServiceContextDelegate Web Service context delegate.
+     * @param bufferFactory Buffer factory for the response content.
+     */
+    public JaxwsConnection(HttpRequest httpRequest, HttpResponse httpResponse,
+                           JaxwsRequestUrl jaxwsRequestUrl,
+                           WebServiceContextDelegate webServiceContextDelegate,
+                           ChannelBufferFactory bufferFactory) {
         this.httpRequest = httpRequest;
         this.httpResponse = httpResponse;
         this.jaxwsRequestUrl = jaxwsRequestUrl;
         this.webServiceContextDelegate = webServiceContextDelegate;
+        this.bufferFactory = bufferFactory;
     }
 
     /**
@@ -166,7 +195,7 @@ public class JaxwsConnection extends WSHTTPConnection {
     @Override
     @Property(MessageContext.HTTP_RESPONSE_CODE)
     public int getStatus() {
-        return httpResponse.getStatus().getCode();
+        return status;
     }
 
     /**
@@ -174,6 +203,7 @@ public class JaxwsConnection extends WSHTTPConnection {
      */
     @Override
     public void setStatus(int status) {
+        this.status = status;
         httpResponse.setStatus(HttpResponseStatus.valueOf(status));
     }
 
@@ -191,7 +221,7 @@ public class JaxwsConnection extends WSHTTPConnection {
     @Override
     public @NotNull OutputStream getOutput() throws IOException {
         if (outputStream == null)
-            outputStream = new ResponseOutputStream(httpResponse);
+            outputStream = new ResponseOutputStream(httpResponse, bufferFactory);
 
         return outputStream;
     }
@@ -311,6 +341,15 @@ public class JaxwsConnection extends WSHTTPConnection {
         return model;
     }
 
+    /**
+     * Release the response content buffer if it's pooled, whether or not the output
+     * is closed, e.g. when handling the request failed and no response will be written.
+     */
+    void releaseOutput() {
+        if (outputStream != null)
+            outputStream.release();
+    }
+
     private void initializeRequestHeaders() {
         Set<String> headerNames = httpRequest.getHeaderNames();
         requestHeaders = new HashMap<String, List<String>>(headerNames.size());
@@ -323,17 +362,63 @@ public class JaxwsConnection extends WSHTTPConnection {
             responseHeaders = new HashMap<String, List<String>>();
     }
 
-    static class ResponseOutputStream extends ByteArrayOutputStream {
+    /**
+     * Writes the response content straight into a buffer from the channel's buffer factory,
+     * growing it by acquiring a larger buffer and releasing the old one if it was pooled.
+     */
+    static class ResponseOutputStream extends OutputStream {
+
+        /** Initial buffer capacity. */
+        static final int INITIAL_CAPACITY = 4096;
 
         final HttpResponse response;
 
-        ResponseOutputStream(HttpResponse response) {
+        final ChannelBufferFactory factory;
+
+        ChannelBuffer buffer;
+
+        ResponseOutputStream(HttpResponse response, ChannelBufferFactory factory) {
             this.response = response;
+            this.factory = factory;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureWritable(1);
+            buffer.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureWritable(len);
+            buffer.writeBytes(b, off, len);
         }
 
         @Override
         public void close() throws IOException {
-            response.setContent(ChannelBuffers.wrappedBuffer(toByteArray()));
+            response.setContent(buffer == null ? ChannelBuffers.EMPTY_BUFFER : buffer);
+        }
+
+        void release() {
+            PooledChannelBufferFactory.release(buffer);
+        }
+
+        private void ensureWritable(int length) {
+            if (buffer == null) {
+                buffer = acquire(Math.max(length, INITIAL_CAPACITY));
+            } else if (buffer.writableBytes() < length) {
+                ChannelBuffer larger = acquire(Math.max(buffer.capacity() << 1, buffer.writerIndex() + length));
+                larger.writeBytes(buffer, buffer.readerIndex(), buffer.readableBytes());
+                PooledChannelBufferFactory.release(buffer);
+                buffer = larger;
+            }
+        }
+
+        private ChannelBuffer acquire(int capacity) {
+            if (factory instanceof PooledChannelBufferFactory)
+                return ((PooledChannelBufferFactory) factory).acquire(capacity);
+
+            return factory.getBuffer(capacity);
         }
 
     }
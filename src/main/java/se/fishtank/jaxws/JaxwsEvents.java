@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Java Flight Recorder events for the request lifecycle.
+ * <p/>
+ * The events are defined at runtime through {@code jdk.jfr.EventFactory}, so this
+ * class works on any JVM and all methods are no-ops where JFR isn't available.
+ * The duration events, {@code Dispatch} and {@code ResponseWritten}, have a default
+ * threshold taken from the {@code se.fishtank.jaxws.jfr.threshold} system property
+ * ({@code "20 ms"} if not set) so only slow requests are recorded. As with any JFR
+ * event, thresholds can also be changed in the recording settings.
+ *
+ * @author Christer Sandberg
+ */
+public final class JaxwsEvents {
+
+    private static final Logger logger = Logger.getLogger(JaxwsEvents.class.getName());
+
+    private static final String PREFIX = "se.fishtank.jaxws.";
+
+    private static final EventType CONNECTION_OPENED;
+
+    private static final EventType CONNECTION_CLOSED;
+
+    private static final EventType REQUEST_RECEIVED;
+
+    private static final EventType ROUTE_RESOLVED;
+
+    private static final EventType DISPATCH;
+
+    private static final EventType RESPONSE_WRITTEN;
+
+    static {
+        EventType connectionOpened = null;
+        EventType connectionClosed = null;
+        EventType requestReceived = null;
+        EventType routeResolved = null;
+        EventType dispatch = null;
+        EventType responseWritten = null;
+        try {
+            String threshold = System.getProperty(PREFIX + "jfr.threshold", "20 ms");
+
+            connectionOpened = new EventType("ConnectionOpened", "Connection Opened", null,
+                    new String[] { "channelId", "remoteAddress" },
+                    new Class<?>[] { int.class, String.class });
+            connectionClosed = new EventType("ConnectionClosed", "Connection Closed", null,
+                    new String[] { "channelId" },
+                    new Class<?>[] { int.class });
+            requestReceived = new EventType("RequestReceived", "Request Received", null,
+                    new String[] { "channelId", "method", "uri", "contentLength" },
+                    new Class<?>[] { int.class, String.class, String.class, long.class });
+            routeResolved = new EventType("RouteResolved", "Route Resolved", null,
+                    new String[] { "channelId", "contextPath", "found" },
+                    new Class<?>[] { int.class, String.class, boolean.class });
+            dispatch = new EventType("Dispatch", "Dispatch", threshold,
+                    new String[] { "channelId", "contextPath", "operation", "status" },
+                    new Class<?>[] { int.class, String.class, String.class, int.class });
+            responseWritten = new EventType("ResponseWritten", "Response Written", threshold,
+                    new String[] { "channelId", "contextPath", "status", "bytes" },
+                    new Class<?>[] { int.class, String.class, int.class, long.class });
+        } catch (Throwable t) {
+            // JFR isn't available, e.g. on older JVMs.
+            if (logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "Flight Recorder events disabled", t);
+
+            connectionOpened = connectionClosed = requestReceived = routeResolved = dispatch = responseWritten = null;
+        }
+
+        CONNECTION_OPENED = connectionOpened;
+        CONNECTION_CLOSED = connectionClosed;
+        REQUEST_RECEIVED = requestReceived;
+        ROUTE_RESOLVED = routeResolved;
+        DISPATCH = dispatch;
+        RESPONSE_WRITTEN = responseWritten;
+    }
+
+    /**
+     * Private
+     */
+    private JaxwsEvents() {
+    }
+
+    /**
+     * Checks whether Flight Recorder events are available.
+     *
+     * @return {@code true} if the events are available.
+     */
+    public static boolean isAvailable() {
+        return DISPATCH != null;
+    }
+
+    /**
+     * Record that a connection was opened.
+     *
+     * @param channel The channel.
+     */
+    static void connectionOpened(Channel channel) {
+        if (isEnabled(CONNECTION_OPENED))
+            CONNECTION_OPENED.commit(channel.getId(), String.valueOf(channel.getRemoteAddress()));
+    }
+
+    /**
+     * Record that a connection was closed.
+     *
+     * @param channel The channel.
+     */
+    static void connectionClosed(Channel channel) {
+        if (isEnabled(CONNECTION_CLOSED))
+            CONNECTION_CLOSED.commit(channel.getId());
+    }
+
+    /**
+     * Record that a request was received.
+     *
+     * @param channel The channel.
+     * @param method HTTP method.
+     * @param uri Request URI.
+     * @param contentLength Content length in bytes.
+     */
+    static void requestReceived(Channel channel, String method, String uri, long contentLength) {
+        if (isEnabled(REQUEST_RECEIVED))
+            REQUEST_RECEIVED.commit(channel.getId(), method, uri, contentLength);
+    }
+
+    /**
+     * Record that a request was routed.
+     *
+     * @param channel The channel.
+     * @param contextPath Context path looked up.
+     * @param found Whether an endpoint was found or not.
+     */
+    static void routeResolved(Channel channel, String contextPath, boolean found) {
+        if (isEnabled(ROUTE_RESOLVED))
+            ROUTE_RESOLVED.commit(channel.getId(), contextPath, found);
+    }
+
+    /**
+     * Begin a dispatch event.
+     *
+     * @return The event or {@code null} if not recorded.
+     */
+    static Object beginDispatch() {
+        return isEnabled(DISPATCH) ? DISPATCH.begin() : null;
+    }
+
+    /**
+     * End and commit a dispatch event.
+     *
+     * @param event The event returned by {@link #beginDispatch()}.
+     * @param channel The channel.
+     * @param contextPath Context path of the endpoint.
+     * @param operation The operation.
+     * @param status HTTP status of the response.
+     */
+    static void endDispatch(Object event, Channel channel, String contextPath, String operation, int status) {
+        if (event != null)
+            DISPATCH.end(event, channel.getId(), contextPath, operation, status);
+    }
+
+    /**
+     * Begin a response event, measuring the time until the response is written.
+     *
+     * @return The event or {@code null} if not recorded.
+     */
+    static Object beginResponse() {
+        return isEnabled(RESPONSE_WRITTEN) ? RESPONSE_WRITTEN.begin() : null;
+    }
+
+    /**
+     * End and commit a response event.
+     *
+     * @param event The event returned by {@link #beginResponse()}.
+     * @param channel The channel.
+     * @param contextPath Context path of the endpoint.
+     * @param status HTTP status of the response.
+     * @param bytes Response content length in bytes.
+     */
+    static void endResponse(Object event, Channel channel, String contextPath, int status, long bytes) {
+        if (event != null)
+            RESPONSE_WRITTEN.end(event, channel.getId(), contextPath, status, bytes);
+    }
+
+    /**
+     * Checks whether an event type is enabled, i.e. a recording is running with the
+     * event turned on. This is checked before the event values are built, so nothing
+     * is allocated for an event that isn't recorded.
+     *
+     * @param type The event type or {@code null} if JFR isn't available.
+     * @return {@code true} if the event type is enabled.
+     */
+    private static boolean isEnabled(EventType type) {
+        return type != null && type.isEnabled();
+    }
+
+    /**
+     * An event type defined through {@code jdk.jfr.EventFactory}.
+     */
+    private static final class EventType {
+
+        final Object factory;
+
+        /** The {@code jdk.jfr.EventType} of the factory. */
+        final Object eventType;
+
+        final Method newEvent;
+
+        /** {@code jdk.jfr.EventType.isEnabled()}, checked before the event values are built. */
+        final Method isEnabled;
+
+        final Method begin;
+
+        final Method end;
+
+        final Method shouldCommit;
+
+        final Method commit;
+
+        final Method set;
+
+        @SuppressWarnings("unchecked")
+        EventType(String name, String label, String threshold, String[] fieldNames, Class<?>[] fieldTypes)
+                throws Exception {
+            ClassLoader cl = ClassLoader.getSystemClassLoader();
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement", true, cl);
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor", true, cl);
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", true, cl);
+            Class<?> eventClass = Class.forName("jdk.jfr.Event", true, cl);
+            Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType", true, cl);
+
+            Constructor<?> annotation = annotationElementClass.getConstructor(Class.class, Object.class);
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name", true, cl), PREFIX + name));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label", true, cl), label));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category", true, cl),
+                    new String[] { "JAX-WS" }));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace", true, cl), false));
+            if (threshold != null)
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Threshold", true, cl), threshold));
+
+            Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+            List<Object> fields = new ArrayList<Object>(fieldNames.length);
+            for (int i = 0; i < fieldNames.length; i++)
+                fields.add(valueDescriptor.newInstance(fieldTypes[i], fieldNames[i]));
+
+            factory = eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            eventType = eventFactoryClass.getMethod("getEventType").invoke(factory);
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            isEnabled = eventTypeClass.getMethod("isEnabled");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            shouldCommit = eventClass.getMethod("shouldCommit");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+        }
+
+        /**
+         * Checks whether the event type is enabled.
+         */
+        boolean isEnabled() {
+            try {
+                return (Boolean) isEnabled.invoke(eventType);
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        /**
+         * Create and begin an event.
+         * <p/>
+         * The caller checks that the event type is {@linkplain #isEnabled() enabled} first.
+         *
+         * @return The event or {@code null} if it couldn't be created.
+         */
+        Object begin() {
+            try {
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return event;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        /**
+         * End an event and commit it if it should be.
+         */
+        void end(Object event, Object... values) {
+            try {
+                end.invoke(event);
+                if ((Boolean) shouldCommit.invoke(event)) {
+                    for (int i = 0; i < values.length; i++)
+                        set.invoke(event, i, values[i]);
+
+                    commit.invoke(event);
+                }
+            } catch (Exception e) {
+                // Recording is best effort.
+            }
+        }
+
+        /**
+         * Commit an instant event.
+         */
+        void commit(Object... values) {
+            Object event = begin();
+            if (event != null)
+                end(event, values);
+        }
+
+    }
+
+}
@@ -3,21 +3,18 @@
  */
 package se.fishtank.jaxws;
 
-import java.net.URL;
 import java.security.Principal;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Queue;
 
 import javax.xml.namespace.QName;
 import javax.xml.ws.WebServiceException;
 
 import com.sun.istack.NotNull;
-import com.sun.xml.ws.api.BindingID;
 import com.sun.xml.ws.api.message.Packet;
 import com.sun.xml.ws.api.server.*;
-import com.sun.xml.ws.binding.BindingImpl;
-import com.sun.xml.ws.server.EndpointFactory;
-import com.sun.xml.ws.server.ServerRtException;
 import com.sun.xml.ws.transport.http.HttpAdapter;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
@@ -25,6 +22,7 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timer;
 
 /**
  * A {@link ChannelUpstreamHandler} for JAX-WS.
@@ -37,7 +35,13 @@ public class JaxwsHandler extends SimpleChannelUpstreamHandler {
     private final ChannelGroup channels;
 
     /** Endpoint mappings. */
-    private final HashMap<String, HttpAdapter> endpointMappings;
+    private final EndpointMappings endpointMappings;
+
+    /** Request coalescers keyed by context path. */
+    private final Map<String, RequestCoalescer> coalescers;
+
+    /** Timer for requests waiting for a coalesced invocation. */
+    private final Timer timer;
 
     /**
      * Create a new insance.
@@ -65,10 +69,23 @@ public class JaxwsHandler extends SimpleChannelUpstreamHandler {
      * @param mappings Endpoint mappings.
      */
     public JaxwsHandler(ChannelGroup channels, Map<String, Object> mappings) {
+        this(channels, EndpointMappings.create(mappings), Collections.<String, RequestCoalescer>emptyMap(), null);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param channels Channel group for connected channels.
+     * @param endpointMappings Endpoint mappings.
+     * @param coalescers {@linkplain RequestCoalescer Request coalescers} keyed by context path.
+     * @param timer Timer for requests waiting for a coalesced invocation, required if there are coalescers.
+     */
+    public JaxwsHandler(ChannelGroup channels, EndpointMappings endpointMappings,
+                        Map<String, RequestCoalescer> coalescers, Timer timer) {
         this.channels = channels;
-        this.endpointMappings = new HashMap<String, HttpAdapter>(mappings.size());
-        for (Map.Entry<String, Object> entry : mappings.entrySet())
-            this.endpointMappings.put(entry.getKey(), createEndpointAdapter(entry.getValue()));
+        this.endpointMappings = endpointMappings;
+        this.coalescers = coalescers;
+        this.timer = timer;
     }
 
     /**
@@ -77,52 +94,88 @@ public class JaxwsHandler extends SimpleChannelUpstreamHandler {
     @Override
     public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         if (channels != null) channels.add(e.getChannel());
+        JaxwsEvents.connectionOpened(e.getChannel());
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        JaxwsEvents.connectionClosed(e.getChannel());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        // Responses must be written in request order, so requests received while one is
+        // waiting for a coalesced invocation are held back until it's completed.
+        Queue<MessageEvent> heldBack = (Queue<MessageEvent>) ctx.getAttachment();
+        if (heldBack != null) {
+            heldBack.offer(e);
+            return;
+        }
+
         Channel channel = e.getChannel();
         HttpRequest request = (HttpRequest) e.getMessage();
         HttpVersion httpVersion = request.getProtocolVersion();
 
-        JaxwsRequestUrl jaxwsRequestUrl = JaxwsRequestUrl.newInstance(ctx, request);
-        String lookup = jaxwsRequestUrl.contextPath.isEmpty() ? "/" : jaxwsRequestUrl.contextPath;
-        HttpAdapter adapter = endpointMappings.get(lookup);
-        if (adapter == null) {
+        Object responseEvent = JaxwsEvents.beginResponse();
+        JaxwsEvents.requestReceived(channel, request.getMethod().getName(), request.getUri(),
+                request.getContent().readableBytes());
+
+        String contextPath = JaxwsRequestUrl.getContextPath(request.getUri());
+        String lookup = contextPath.isEmpty() ? "/" : contextPath;
+        EndpointMappings.Registration registration = endpointMappings.acquire(lookup);
+        JaxwsEvents.routeResolved(channel, lookup, registration != null);
+        if (registration == null) {
             DefaultHttpResponse response = new DefaultHttpResponse(httpVersion, HttpResponseStatus.NOT_FOUND);
             channel.write(response).addListener(ChannelFutureListener.CLOSE);
             return;
         }
 
-        boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        HttpAdapter adapter = registration.adapter;
+        JaxwsRequestUrl jaxwsRequestUrl = JaxwsRequestUrl.newInstance(ctx, request);
 
         DefaultHttpResponse response = new DefaultHttpResponse(httpVersion, HttpResponseStatus.OK);
         WebServiceContextDelegate delegate = createDelegate(adapter, jaxwsRequestUrl);
-        JaxwsConnection connection = new JaxwsConnection(request, response, jaxwsRequestUrl, delegate);
-
-        if (request.getMethod() == HttpMethod.GET && isWsdlRequest(jaxwsRequestUrl.queryString)) {
-            adapter.publishWSDL(connection);
-        } else {
-            adapter.handle(connection);
+        JaxwsConnection connection = new JaxwsConnection(request, response, jaxwsRequestUrl, delegate,
+                channel.getConfig().getBufferFactory());
+
+        Exchange exchange = new Exchange(ctx, request, response, connection, registration, lookup,
+                responseEvent, JaxwsEvents.beginDispatch());
+        boolean handled = true;
+        try {
+            if (request.getMethod() == HttpMethod.GET && isWsdlRequest(jaxwsRequestUrl.queryString)) {
+                adapter.publishWSDL(connection);
+            } else {
+                RequestCoalescer coalescer = coalescers.get(lookup);
+                if (coalescer != null && request.getMethod() == HttpMethod.POST) {
+                    handled = coalescer.handle(adapter, connection, request, response, timer, exchange);
+                } else {
+                    adapter.handle(connection);
+                }
+            }
+        } catch (Exception ex) {
+            // No response is written, so release the content even if the output isn't closed.
+            connection.releaseOutput();
+            throw ex;
+        } finally {
+            // The response is complete so the endpoint may be disposed if it's unregistered.
+            if (handled)
+                registration.release();
         }
 
-        // Let's honor the keep-alive header since JAX-WS RI always seem to invoke close on the
-        // connection, and I don't really know if that means that we should close the underlying
-        // one or not.
-        if (keepAlive) {
-            response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
-            if (response.getHeader(HttpHeaders.Names.CONTENT_LENGTH) == null)
-                response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, response.getContent().readableBytes());
+        if (handled) {
+            exchange.respond();
         } else {
-            response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+            // Completed by the exchange.
+            ctx.setAttachment(new LinkedList<MessageEvent>());
+            channel.setReadable(false);
         }
-
-        ChannelFuture future = channel.write(response);
-        if (!keepAlive)
-            future.addListener(ChannelFutureListener.CLOSE);
     }
 
     /**
@@ -146,39 +199,6 @@ public class JaxwsHandler extends SimpleChannelUpstreamHandler {
         }
     }
 
-    /**
-     * Create a HTTP adapter for the {@link javax.jws.WebService}
-     * or {@link javax.xml.ws.WebServiceProvider} annotated implementor.
-     *
-     * @param implementor Web Service implementor.
-     * @return A HTTP adapter.
-     */
-    private HttpAdapter createEndpointAdapter(Object implementor) {
-        // Check for WSDL location.
-        Class implType = implementor.getClass();
-        EndpointFactory.verifyImplementorClass(implType);
-        String wsdlLocation = EndpointFactory.getWsdlLocation(implType);
-
-        SDDocumentSource primaryWsdl = null;
-        if (wsdlLocation != null) {
-            ClassLoader cl = implType.getClassLoader();
-            URL wsdlUrl = cl.getResource(wsdlLocation);
-            if (wsdlUrl == null)
-                throw new ServerRtException("cannot.load.wsdl", wsdlLocation);
-
-            primaryWsdl = SDDocumentSource.create(wsdlUrl);
-        }
-
-        WSEndpoint endpoint = WSEndpoint.create(implementor.getClass(), true,
-                InstanceResolver.createSingleton(implementor).createInvoker(),
-                null, null,null,
-                BindingImpl.create(BindingID.parse(implementor.getClass())),
-                primaryWsdl,
-                null, null, true);
-
-        return HttpAdapter.createAlone(endpoint);
-    }
-
     /**
      * Create a new {@link WebServiceContextDelegate}.
      *
@@ -186,7 +206,7 @@ public class JaxwsHandler extends SimpleChannelUpstreamHandler {
      * @param jaxwsRequestUrl JAX-WS URL for the request.
      * @return A new {@link WebServiceContextDelegate}.
      */
-    private WebServiceContextDelegate createDelegate(final HttpAdapter adapter, final JaxwsRequestUrl jaxwsRequestUrl) {
+    static WebServiceContextDelegate createDelegate(final HttpAdapter adapter, final JaxwsRequestUrl jaxwsRequestUrl) {
         return new WebServiceContextDelegate() {
             @Override
             public Principal getUserPrincipal(@NotNull Packet request) {
@@ -226,4 +246,153 @@ public class JaxwsHandler extends SimpleChannelUpstreamHandler {
         return queryString != null && (queryString.equalsIgnoreCase("wsdl") || queryString.startsWith("xsd="));
     }
 
+    /**
+     * Handle the requests that were held back while a request was waiting for a coalesced
+     * invocation, until one of them waits again.
+     *
+     * @param ctx Channel handler context.
+     * @throws Exception If handling a request fails.
+     */
+    @SuppressWarnings("unchecked")
+    private void resume(ChannelHandlerContext ctx) throws Exception {
+        Queue<MessageEvent> heldBack = (Queue<MessageEvent>) ctx.getAttachment();
+        ctx.setAttachment(null);
+
+        MessageEvent e;
+        while ((e = heldBack.poll()) != null) {
+            messageReceived(ctx, e);
+            Queue<MessageEvent> waiting = (Queue<MessageEvent>) ctx.getAttachment();
+            if (waiting != null) {
+                waiting.addAll(heldBack);
+                return;
+            }
+        }
+
+        ctx.getChannel().setReadable(true);
+    }
+
+    /**
+     * A request and its response. Completes a request that waits for a
+     * {@linkplain RequestCoalescer coalesced} invocation in the I/O thread of its channel.
+     */
+    private final class Exchange implements RequestCoalescer.Listener {
+
+        final ChannelHandlerContext ctx;
+
+        final Channel channel;
+
+        final HttpRequest request;
+
+        final HttpResponse response;
+
+        final JaxwsConnection connection;
+
+        final EndpointMappings.Registration registration;
+
+        final String lookup;
+
+        final Object responseEvent;
+
+        final Object dispatchEvent;
+
+        Exchange(ChannelHandlerContext ctx, HttpRequest request, HttpResponse response, JaxwsConnection connection,
+                 EndpointMappings.Registration registration, String lookup,
+                 Object responseEvent, Object dispatchEvent) {
+            this.ctx = ctx;
+            this.channel = ctx.getChannel();
+            this.request = request;
+            this.response = response;
+            this.connection = connection;
+            this.registration = registration;
+            this.lookup = lookup;
+            this.responseEvent = responseEvent;
+            this.dispatchEvent = dispatchEvent;
+        }
+
+        @Override
+        public void responseReady() {
+            complete(false);
+        }
+
+        @Override
+        public void invocationAbandoned() {
+            complete(true);
+        }
+
+        /**
+         * Complete the request in the I/O thread of its channel.
+         *
+         * @param handle Whether the request must be handled first.
+         */
+        private void complete(final boolean handle) {
+            channel.getPipeline().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (handle)
+                            registration.adapter.handle(connection);
+                    } catch (Exception e) {
+                        connection.releaseOutput();
+                        Channels.fireExceptionCaught(channel, e);
+                        return;
+                    } finally {
+                        registration.release();
+                    }
+
+                    respond();
+                    try {
+                        resume(ctx);
+                    } catch (Exception e) {
+                        Channels.fireExceptionCaught(channel, e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Write the response.
+         */
+        void respond() {
+            final int status = response.getStatus().getCode();
+            if (dispatchEvent != null)
+                JaxwsEvents.endDispatch(dispatchEvent, channel, lookup, RequestCoalescer.getOperation(request), status);
+
+            // The content may be released, and reused, as soon as the response is written.
+            final long bytes = response.getContent().readableBytes();
+
+            // Let's honor the keep-alive header since JAX-WS RI always seem to invoke close on the
+            // connection, and I don't really know if that means that we should close the underlying
+            // one or not.
+            boolean keepAlive = HttpHeaders.isKeepAlive(request);
+            if (keepAlive) {
+                response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+                if (response.getHeader(HttpHeaders.Names.CONTENT_LENGTH) == null)
+                    response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, bytes);
+            } else {
+                response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+            }
+
+            ChannelFuture future = channel.write(response);
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    PooledChannelBufferFactory.release(response.getContent());
+                }
+            });
+
+            if (responseEvent != null) {
+                future.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        JaxwsEvents.endResponse(responseEvent, channel, lookup, status, bytes);
+                    }
+                });
+            }
+
+            if (!keepAlive)
+                future.addListener(ChannelFutureListener.CLOSE);
+        }
+
+    }
+
 }
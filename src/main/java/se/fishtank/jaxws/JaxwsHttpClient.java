@@ -0,0 +1,568 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * A HTTP client with per-host pools of keep-alive connections, used as
+ * the transport for outbound JAX-WS calls.
+ * <p/>
+ * Connections that are idle longer than the idle timeout are closed. Like the
+ * default JAX-WS transport, a request that fails on a reused connection before
+ * any response is received, e.g. because the server closed the idle connection
+ * meanwhile, is retried once on a new connection.
+ * <p/>
+ * The client isn't used by JAX-WS until it's {@linkplain #install(JaxwsHttpClient) installed}.
+ *
+ * @author Christer Sandberg
+ */
+public final class JaxwsHttpClient {
+
+    /** Default max size in bytes of a response body. */
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 10 * 1024 * 1024;
+
+    /** Default idle timeout in milliseconds of a connection. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+
+    /** The installed client or {@code null} if none. */
+    private static volatile JaxwsHttpClient installed;
+
+    /** Max number of connections per host. */
+    private final int maxConnectionsPerHost;
+
+    /** Max number of requests in flight per connection. */
+    private final int maxPipelined;
+
+    /** Default request timeout in milliseconds. */
+    private final long requestTimeoutMillis;
+
+    /** Idle timeout in milliseconds of a connection or {@code 0} for none. */
+    private final long idleTimeoutMillis;
+
+    /** Whether the client is closed or not. */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /** Connection pools keyed by host and port. */
+    private final ConcurrentMap<InetSocketAddress, HostPool> pools = new ConcurrentHashMap<InetSocketAddress, HostPool>();
+
+    /** Channel group for all connections. */
+    private final ChannelGroup channels = new DefaultChannelGroup("jax-ws-client");
+
+    /** Timer for request and idle timeouts. */
+    private final Timer timer = new HashedWheelTimer();
+
+    /** Bootstrap instance for this client. */
+    private final ClientBootstrap bootstrap;
+
+    /**
+     * Create a new instance with 16 connections per host, no pipelining,
+     * a 10 seconds connect timeout and a 60 seconds request timeout.
+     * Connections are closed after {@link #DEFAULT_IDLE_TIMEOUT_MILLIS}.
+     */
+    public JaxwsHttpClient() {
+        this(16, 1, 10, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create a new instance with a max response size of {@link #DEFAULT_MAX_RESPONSE_SIZE}.
+     *
+     * @param maxConnectionsPerHost Max number of connections per host.
+     * @param maxPipelined Max number of requests in flight per connection.
+     * @param connectTimeout Connect timeout.
+     * @param requestTimeout Default request timeout.
+     * @param unit Time unit of the timeouts.
+     */
+    public JaxwsHttpClient(int maxConnectionsPerHost, int maxPipelined,
+                           long connectTimeout, long requestTimeout, TimeUnit unit) {
+        this(maxConnectionsPerHost, maxPipelined, connectTimeout, requestTimeout, unit, DEFAULT_MAX_RESPONSE_SIZE);
+    }
+
+    /**
+     * Create a new instance with an idle timeout of {@link #DEFAULT_IDLE_TIMEOUT_MILLIS}.
+     * <p/>
+     * A request whose response body is larger than {@code maxResponseSize} fails,
+     * and the connection it was sent on is closed.
+     *
+     * @param maxConnectionsPerHost Max number of connections per host.
+     * @param maxPipelined Max number of requests in flight per connection.
+     * @param connectTimeout Connect timeout.
+     * @param requestTimeout Default request timeout.
+     * @param unit Time unit of the timeouts.
+     * @param maxResponseSize Max size in bytes of a response body.
+     */
+    public JaxwsHttpClient(int maxConnectionsPerHost, int maxPipelined,
+                           long connectTimeout, long requestTimeout, TimeUnit unit, int maxResponseSize) {
+        this(maxConnectionsPerHost, maxPipelined, unit.toMillis(connectTimeout), unit.toMillis(requestTimeout),
+                DEFAULT_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, maxResponseSize);
+    }
+
+    /**
+     * Create a new instance.
+     * <p/>
+     * A request whose response body is larger than {@code maxResponseSize} fails,
+     * and the connection it was sent on is closed.
+     *
+     * @param maxConnectionsPerHost Max number of connections per host.
+     * @param maxPipelined Max number of requests in flight per connection.
+     * @param connectTimeout Connect timeout.
+     * @param requestTimeout Default request timeout.
+     * @param idleTimeout Max time a connection is kept open without requests in flight, or {@code 0} for no limit.
+     * @param unit Time unit of the timeouts.
+     * @param maxResponseSize Max size in bytes of a response body.
+     */
+    public JaxwsHttpClient(int maxConnectionsPerHost, int maxPipelined, long connectTimeout, long requestTimeout,
+                           long idleTimeout, TimeUnit unit, final int maxResponseSize) {
+        if (maxConnectionsPerHost < 1)
+            throw new IllegalArgumentException("maxConnectionsPerHost: " + maxConnectionsPerHost);
+
+        if (maxPipelined < 1)
+            throw new IllegalArgumentException("maxPipelined: " + maxPipelined);
+
+        if (maxResponseSize < 1)
+            throw new IllegalArgumentException("maxResponseSize: " + maxResponseSize);
+
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxPipelined = maxPipelined;
+        this.requestTimeoutMillis = unit.toMillis(requestTimeout);
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+
+        bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory());
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("keepAlive", true);
+        bootstrap.setOption("connectTimeoutMillis", unit.toMillis(connectTimeout));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                // Larger bodies are decoded as chunks, so the aggregator enforces the limit on them too.
+                return Channels.pipeline(new HttpClientCodec(4096, 8192, Math.min(8192, maxResponseSize)),
+                        new HttpChunkAggregator(maxResponseSize));
+            }
+        });
+    }
+
+    /**
+     * Install a client as the transport for outbound JAX-WS calls.
+     *
+     * @param client The client or {@code null} to use the default JAX-WS transport.
+     */
+    public static void install(JaxwsHttpClient client) {
+        installed = client;
+    }
+
+    /**
+     * Get the installed client.
+     *
+     * @return The installed client or {@code null} if none.
+     */
+    public static JaxwsHttpClient getInstalled() {
+        return installed;
+    }
+
+    /**
+     * Close all connections and release all resources.
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            if (installed == this)
+                installed = null;
+
+            channels.close().awaitUninterruptibly();
+            timer.stop();
+            bootstrap.releaseExternalResources();
+        }
+    }
+
+    /**
+     * Get the default request timeout.
+     *
+     * @return The default request timeout in milliseconds.
+     */
+    long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    /**
+     * Execute a request.
+     *
+     * @param address Address of the host.
+     * @param request HTTP request.
+     * @param timeoutMillis Request timeout in milliseconds or {@code 0} for none.
+     * @param listener Listener notified, on an I/O thread, of the outcome.
+     */
+    void execute(InetSocketAddress address, HttpRequest request, long timeoutMillis, ResponseListener listener) {
+        Exchange exchange = new Exchange(request, listener);
+        if (closed.get()) {
+            exchange.fail(new ClosedChannelException());
+            return;
+        }
+
+        if (timeoutMillis > 0)
+            exchange.timeout = timer.newTimeout(exchange, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        HostPool pool = pools.get(address);
+        if (pool == null) {
+            HostPool newPool = new HostPool(address);
+            pool = pools.putIfAbsent(address, newPool);
+            if (pool == null)
+                pool = newPool;
+        }
+
+        pool.execute(exchange);
+    }
+
+    /**
+     * Notified of the outcome of a request.
+     */
+    interface ResponseListener {
+
+        void responseReceived(HttpResponse response);
+
+        void failed(Throwable cause);
+
+    }
+
+    /**
+     * A request and its listener.
+     */
+    private static final class Exchange implements TimerTask {
+
+        final HttpRequest request;
+
+        final ResponseListener listener;
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        volatile Timeout timeout;
+
+        /** The connection the request is sent on or {@code null} if not sent. */
+        volatile Connection connection;
+
+        /** Whether the request was sent on a connection that already had responses. */
+        boolean reused;
+
+        /** Reads on the connection when the request was sent. */
+        long readsWhenSent;
+
+        /** Whether the request is sent again after a failure. */
+        boolean retried;
+
+        Exchange(HttpRequest request, ResponseListener listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+
+        void complete(HttpResponse response) {
+            if (done.compareAndSet(false, true)) {
+                cancelTimeout();
+                listener.responseReceived(response);
+            }
+        }
+
+        void fail(Throwable cause) {
+            if (done.compareAndSet(false, true)) {
+                cancelTimeout();
+                listener.failed(cause);
+            }
+        }
+
+        /**
+         * Checks whether the request may be sent again after its connection failed, i.e. if
+         * the connection was reused and nothing was received on it since the request was sent,
+         * and prepares it for that. A request is only sent again once.
+         *
+         * @param reads Reads on the failed connection.
+         * @return {@code true} if the request should be sent again.
+         */
+        boolean retry(long reads) {
+            if (done.get() || retried || !reused || reads != readsWhenSent)
+                return false;
+
+            retried = true;
+            connection = null;
+            return true;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            fail(new SocketTimeoutException("Request timed out"));
+
+            // A pipelined response can't be skipped, so the connection is useless now.
+            Connection c = connection;
+            if (c != null)
+                c.channel.close();
+        }
+
+        private void cancelTimeout() {
+            Timeout t = timeout;
+            if (t != null)
+                t.cancel();
+        }
+
+    }
+
+    /**
+     * Connections to a single host.
+     */
+    private final class HostPool {
+
+        final InetSocketAddress address;
+
+        final List<Connection> connections = new ArrayList<Connection>();
+
+        final Queue<Exchange> waiting = new ArrayDeque<Exchange>();
+
+        /** Number of connections being established. */
+        int connecting;
+
+        HostPool(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        synchronized void execute(Exchange exchange) {
+            waiting.add(exchange);
+            dispatch();
+        }
+
+        /**
+         * Send waiting requests on the least loaded connections, opening new ones if needed.
+         */
+        synchronized void dispatch() {
+            while (!waiting.isEmpty()) {
+                Exchange exchange = waiting.peek();
+                if (exchange.done.get()) {
+                    waiting.poll();
+                    continue;
+                }
+
+                // A request that's sent again is only sent on a connection without responses, since the
+                // other connections may be closed by the server too.
+                Connection best = null;
+                for (Connection connection : connections) {
+                    if (connection.reusable && connection.outstanding.size() < maxPipelined &&
+                            (!exchange.retried || connection.responses == 0) &&
+                            (best == null || connection.outstanding.size() < best.outstanding.size()))
+                        best = connection;
+                }
+
+                if (best == null) {
+                    if (connections.size() + connecting < maxConnectionsPerHost && connecting < waiting.size())
+                        connect();
+
+                    return;
+                }
+
+                best.send(waiting.poll());
+            }
+        }
+
+        private void connect() {
+            connecting++;
+            bootstrap.connect(address).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    List<Exchange> failed = null;
+                    synchronized (HostPool.this) {
+                        connecting--;
+                        Connection connection = null;
+                        if (future.isSuccess()) {
+                            Channel channel = future.getChannel();
+                            channels.add(channel);
+                            connection = new Connection(HostPool.this, channel);
+                            channel.getPipeline().addFirst("reads", connection.readCounter);
+                            channel.getPipeline().addLast("handler", connection);
+                            connections.add(connection);
+                        } else if (connections.isEmpty() && connecting == 0) {
+                            failed = new ArrayList<Exchange>(waiting);
+                            waiting.clear();
+                        }
+
+                        dispatch();
+                        if (connection != null)
+                            connection.idle();
+                    }
+
+                    if (failed != null) {
+                        for (Exchange exchange : failed)
+                            exchange.fail(future.getCause());
+                    }
+                }
+            });
+        }
+
+        synchronized void remove(Connection connection) {
+            connections.remove(connection);
+            dispatch();
+        }
+
+    }
+
+    /**
+     * A single connection with its in-flight requests.
+     */
+    private final class Connection extends SimpleChannelUpstreamHandler implements TimerTask {
+
+        final HostPool pool;
+
+        final Channel channel;
+
+        /** Requests sent on this connection, in response order. */
+        final Queue<Exchange> outstanding = new ArrayDeque<Exchange>();
+
+        /** Counts reads before they're decoded, so a failure can tell if any response bytes were received. */
+        final ChannelUpstreamHandler readCounter = new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                reads++;
+                ctx.sendUpstream(e);
+            }
+        };
+
+        /** Whether more requests may be sent on this connection. */
+        volatile boolean reusable = true;
+
+        /** Number of responses received. Only changed while holding the pool lock. */
+        int responses;
+
+        /** Number of reads. Only changed from the I/O thread. */
+        volatile long reads;
+
+        /** Idle timeout or {@code null} if requests are in flight. Only used while holding the pool lock. */
+        Timeout idleTimeout;
+
+        Connection(HostPool pool, Channel channel) {
+            this.pool = pool;
+            this.channel = channel;
+        }
+
+        /**
+         * Must be called while holding the pool lock.
+         */
+        void send(Exchange exchange) {
+            if (idleTimeout != null) {
+                idleTimeout.cancel();
+                idleTimeout = null;
+            }
+
+            outstanding.add(exchange);
+            exchange.connection = this;
+            exchange.reused = responses > 0;
+            exchange.readsWhenSent = reads;
+            channel.write(exchange.request);
+        }
+
+        /**
+         * Start the idle timeout if no requests are in flight. Must be called while holding the pool lock.
+         */
+        void idle() {
+            if (idleTimeoutMillis > 0 && idleTimeout == null && reusable && outstanding.isEmpty())
+                idleTimeout = timer.newTimeout(this, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Close the connection when the idle timeout expires.
+         */
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            synchronized (pool) {
+                // Requests may have been sent while the timeout expired.
+                if (timeout != idleTimeout)
+                    return;
+
+                idleTimeout = null;
+                reusable = false;
+            }
+
+            channel.close();
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            HttpResponse response = (HttpResponse) e.getMessage();
+
+            Exchange exchange;
+            synchronized (pool) {
+                exchange = outstanding.poll();
+                responses++;
+                if (!HttpHeaders.isKeepAlive(response)) {
+                    reusable = false;
+                    channel.close();
+                }
+            }
+
+            if (exchange != null)
+                exchange.complete(response);
+
+            synchronized (pool) {
+                pool.dispatch();
+                idle();
+            }
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            failOutstanding(new ClosedChannelException());
+            pool.remove(this);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            failOutstanding(e.getCause());
+            e.getChannel().close();
+        }
+
+        /**
+         * Fail the requests in flight, or send them again if they may be.
+         */
+        private void failOutstanding(Throwable cause) {
+            List<Exchange> failed;
+            synchronized (pool) {
+                reusable = false;
+                if (idleTimeout != null) {
+                    idleTimeout.cancel();
+                    idleTimeout = null;
+                }
+
+                failed = new ArrayList<Exchange>(outstanding);
+                outstanding.clear();
+            }
+
+            long readsWhenFailed = reads;
+            for (Exchange exchange : failed) {
+                if (exchange.retry(readsWhenFailed)) {
+                    pool.execute(exchange);
+                } else {
+                    exchange.fail(cause);
+                }
+            }
+        }
+
+    }
+
+}
@@ -66,6 +66,26 @@ public final class JaxwsRequestUrl {
         this.serverPort = serverPort;
     }
 
+    /**
+     * Get the context path of a request URI, the same as {@link #contextPath} of an instance
+     * created for it, without building the URL. Unlike the URL this never needs the host name
+     * of the local address, which may have to be looked up.
+     *
+     * @param uri The request URI.
+     * @return The context path or an empty string if none exists.
+     */
+    public static String getContextPath(String uri) {
+        int end = uri.indexOf('?');
+        if (end == -1)
+            end = uri.length();
+
+        if (end == 1 && uri.charAt(0) == '/')
+            return "";
+
+        int index = uri.indexOf('/', 1);
+        return uri.substring(0, index != -1 && index < end ? index : end);
+    }
+
     /**
      * Create a new instance.
      *
@@ -74,6 +94,20 @@ public final class JaxwsRequestUrl {
      * @return A new instance.
      */
     public static JaxwsRequestUrl newInstance(ChannelHandlerContext context, HttpRequest request) {
+        boolean isSecure = context.getPipeline().get(SslHandler.class) != null;
+        InetSocketAddress address = (InetSocketAddress) context.getChannel().getLocalAddress();
+        return newInstance(address, isSecure, request);
+    }
+
+    /**
+     * Create a new instance for a request that isn't received on a channel.
+     *
+     * @param address The local address the request is considered received on.
+     * @param isSecure Whether the request is considered a HTTPS request or not.
+     * @param request The HTTP request.
+     * @return A new instance.
+     */
+    public static JaxwsRequestUrl newInstance(InetSocketAddress address, boolean isSecure, HttpRequest request) {
         String uri = request.getUri();
 
         String contextPath = "";
@@ -98,9 +132,6 @@ public final class JaxwsRequestUrl {
             }
         }
 
-        boolean isSecure = context.getPipeline().get(SslHandler.class) != null;
-
-        InetSocketAddress address = (InetSocketAddress) context.getChannel().getLocalAddress();
         String serverName = address.getHostName();
         int serverPort = address.getPort();
 
@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.MessageContext;
+
+import com.sun.xml.ws.api.WSBinding;
+import com.sun.xml.ws.api.message.Packet;
+import com.sun.xml.ws.api.pipe.*;
+import com.sun.xml.ws.api.pipe.helper.AbstractTubeImpl;
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.developer.HttpConfigFeature;
+import com.sun.xml.ws.developer.JAXWSProperties;
+import com.sun.xml.ws.resources.ClientMessages;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+/**
+ * A JAX-WS client transport {@link Tube} that sends requests with a {@link JaxwsHttpClient}.
+ * <p/>
+ * The fiber is suspended while the request is in flight, so asynchronous invocations
+ * don't tie up a thread, and it's resumed from the I/O thread that gets the response.
+ * <p/>
+ * Like the default JAX-WS transport it sends {@code Basic} credentials if
+ * {@link BindingProvider#USERNAME_PROPERTY} is set, and keeps cookies between
+ * requests if {@link BindingProvider#SESSION_MAINTAIN_PROPERTY} is {@code true}.
+ *
+ * @author Christer Sandberg
+ */
+public class JaxwsTransportTube extends AbstractTubeImpl {
+
+    /** Codec for this tube. */
+    private final Codec codec;
+
+    /** HTTP client for this tube. */
+    private final JaxwsHttpClient client;
+
+    /** Cookies of a maintained session, shared with copies of this tube. */
+    private final CookieHandler cookieJar;
+
+    /**
+     * Create a new instance with its own cookie jar.
+     *
+     * @param codec Codec for requests and responses.
+     * @param client HTTP client.
+     */
+    public JaxwsTransportTube(Codec codec, JaxwsHttpClient client) {
+        this(codec, client, (WSBinding) null);
+    }
+
+    /**
+     * Create a new instance that uses the cookie handler of a binding's
+     * {@link HttpConfigFeature}, or its own cookie jar if there's none.
+     *
+     * @param codec Codec for requests and responses.
+     * @param client HTTP client.
+     * @param binding The binding or {@code null}.
+     */
+    public JaxwsTransportTube(Codec codec, JaxwsHttpClient client, WSBinding binding) {
+        HttpConfigFeature feature = binding == null ? null : binding.getFeature(HttpConfigFeature.class);
+        CookieHandler cookieHandler = feature == null ? null : feature.getCookieHandler();
+
+        this.codec = codec;
+        this.client = client;
+        this.cookieJar = cookieHandler != null ? cookieHandler : new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+    }
+
+    /**
+     * Copy constructor.
+     */
+    private JaxwsTransportTube(JaxwsTransportTube that, TubeCloner cloner) {
+        super(that, cloner);
+        this.codec = that.codec.copy();
+        this.client = that.client;
+        this.cookieJar = that.cookieJar;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NextAction processRequest(final Packet request) {
+        URI uri = request.endpointAddress.getURI();
+        int port = uri.getPort() == -1 ? 80 : uri.getPort();
+
+        HttpRequest httpRequest;
+        try {
+            httpRequest = createRequest(request, uri, port);
+        } catch (IOException e) {
+            return doThrow(new WebServiceException(e));
+        }
+
+        long timeout;
+        try {
+            timeout = getRequestTimeout(request);
+        } catch (IllegalArgumentException e) {
+            return doThrow(new WebServiceException(e));
+        }
+
+        final Fiber fiber = Fiber.current();
+        client.execute(new InetSocketAddress(uri.getHost(), port), httpRequest, timeout,
+                new JaxwsHttpClient.ResponseListener() {
+                    @Override
+                    public void responseReceived(HttpResponse response) {
+                        Packet reply;
+                        try {
+                            reply = createResponsePacket(request, response);
+                        } catch (Throwable t) {
+                            fiber.resume(t);
+                            return;
+                        }
+
+                        fiber.resume(reply);
+                    }
+
+                    @Override
+                    public void failed(Throwable cause) {
+                        fiber.resume(new ClientTransportException(cause));
+                    }
+                });
+
+        return doSuspend();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NextAction processResponse(Packet response) {
+        return doReturnWith(response);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NextAction processException(Throwable t) {
+        return doThrow(t);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void preDestroy() {
+        // Connections are owned by the client.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JaxwsTransportTube copy(TubeCloner cloner) {
+        return new JaxwsTransportTube(this, cloner);
+    }
+
+    /**
+     * Get the request timeout of a request packet, i.e. {@link JAXWSProperties#REQUEST_TIMEOUT}
+     * in milliseconds as a number or a string, or the timeout of the client if it's not set.
+     *
+     * @param request Request packet.
+     * @return The request timeout in milliseconds.
+     * @throws IllegalArgumentException If the request timeout isn't a number.
+     */
+    private long getRequestTimeout(Packet request) {
+        Object requestTimeout = request.invocationProperties.get(JAXWSProperties.REQUEST_TIMEOUT);
+        if (requestTimeout == null)
+            return client.getRequestTimeoutMillis();
+
+        if (requestTimeout instanceof Number)
+            return ((Number) requestTimeout).longValue();
+
+        if (requestTimeout instanceof String)
+            return Long.parseLong(((String) requestTimeout).trim());
+
+        throw new IllegalArgumentException("Invalid request timeout: " + requestTimeout);
+    }
+
+    /**
+     * Create a HTTP request for a request packet.
+     *
+     * @param request Request packet.
+     * @param uri Endpoint URI.
+     * @param port Endpoint port.
+     * @return A new HTTP request.
+     * @throws IOException If the packet couldn't be encoded.
+     */
+    @SuppressWarnings("unchecked")
+    private HttpRequest createRequest(Packet request, URI uri, int port) throws IOException {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null)
+            path += "?" + uri.getRawQuery();
+
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, path);
+
+        Map<String, List<String>> headers =
+                (Map<String, List<String>>) request.invocationProperties.get(MessageContext.HTTP_REQUEST_HEADERS);
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet())
+                httpRequest.setHeader(entry.getKey(), entry.getValue());
+        }
+
+        ChannelBuffer content = ChannelBuffers.dynamicBuffer();
+        ContentType contentType = codec.encode(request, new ChannelBufferOutputStream(content));
+
+        httpRequest.setHeader(HttpHeaders.Names.HOST, uri.getHost() + ":" + port);
+        httpRequest.setHeader(HttpHeaders.Names.CONTENT_TYPE, contentType.getContentType());
+        httpRequest.setHeader(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
+        httpRequest.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        if (contentType.getAcceptHeader() != null)
+            httpRequest.setHeader(HttpHeaders.Names.ACCEPT, contentType.getAcceptHeader());
+
+        if (contentType.getSOAPActionHeader() != null)
+            httpRequest.setHeader("SOAPAction", contentType.getSOAPActionHeader());
+
+        String username = (String) request.invocationProperties.get(BindingProvider.USERNAME_PROPERTY);
+        if (username != null) {
+            String password = (String) request.invocationProperties.get(BindingProvider.PASSWORD_PROPERTY);
+            String credentials = username + ":" + (password == null ? "" : password);
+            httpRequest.setHeader(HttpHeaders.Names.AUTHORIZATION,
+                    "Basic " + DatatypeConverter.printBase64Binary(credentials.getBytes(Charset.forName("ISO-8859-1"))));
+        }
+
+        if (isSessionMaintained(request)) {
+            Map<String, List<String>> cookies = cookieJar.get(uri, Collections.<String, List<String>>emptyMap());
+            addCookies(httpRequest, HttpHeaders.Names.COOKIE, cookies.get(HttpHeaders.Names.COOKIE));
+            addCookies(httpRequest, "Cookie2", cookies.get("Cookie2"));
+        }
+
+        httpRequest.setContent(content);
+        return httpRequest;
+    }
+
+    /**
+     * Add cookies to a HTTP request as a single header.
+     *
+     * @param httpRequest HTTP request.
+     * @param name Header name.
+     * @param cookies The cookies or {@code null} if none.
+     */
+    private static void addCookies(HttpRequest httpRequest, String name, List<String> cookies) {
+        if (cookies == null || cookies.isEmpty())
+            return;
+
+        StringBuilder value = new StringBuilder();
+        for (String cookie : cookies) {
+            if (value.length() > 0)
+                value.append("; ");
+
+            value.append(cookie);
+        }
+
+        String existing = httpRequest.getHeader(name);
+        httpRequest.setHeader(name, existing == null ? value.toString() : existing + "; " + value);
+    }
+
+    /**
+     * Checks whether cookies should be kept between requests.
+     *
+     * @param request Request packet.
+     * @return {@code true} if the session is maintained.
+     */
+    private static boolean isSessionMaintained(Packet request) {
+        return Boolean.TRUE.equals(request.invocationProperties.get(BindingProvider.SESSION_MAINTAIN_PROPERTY));
+    }
+
+    /**
+     * Create a response packet for a HTTP response.
+     *
+     * @param request Request packet.
+     * @param response HTTP response.
+     * @return A new response packet.
+     * @throws IOException If the response couldn't be decoded.
+     */
+    private Packet createResponsePacket(Packet request, HttpResponse response) throws IOException {
+        int status = response.getStatus().getCode();
+        String contentType = response.getHeader(HttpHeaders.Names.CONTENT_TYPE);
+        ChannelBuffer content = response.getContent();
+
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        for (String name : response.getHeaderNames())
+            headers.put(name, response.getHeaders(name));
+
+        if (isSessionMaintained(request))
+            cookieJar.put(request.endpointAddress.getURI(), headers);
+
+        // SOAP faults are sent with status 500 so those are fine as long as there's content.
+        if (status != 200 && status != 202 && !(status == 500 && contentType != null && content.readable()))
+            throw new ClientTransportException(ClientMessages.localizableHTTP_STATUS_CODE(
+                    status, response.getStatus().getReasonPhrase()));
+
+        Packet reply = request.createClientResponse(null);
+        reply.invocationProperties.put(MessageContext.HTTP_RESPONSE_CODE, status);
+        reply.invocationProperties.put(MessageContext.HTTP_RESPONSE_HEADERS, headers);
+
+        // One-way or empty responses have no message.
+        if (status == 202 || !content.readable())
+            return reply;
+
+        if (contentType == null)
+            throw new WebServiceException("No Content-type in the header!");
+
+        codec.decode(new ChannelBufferInputStream(content), contentType, reply);
+        return reply;
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import com.sun.xml.ws.api.pipe.ClientTubeAssemblerContext;
+import com.sun.xml.ws.api.pipe.TransportTubeFactory;
+import com.sun.xml.ws.api.pipe.Tube;
+
+/**
+ * Creates {@link JaxwsTransportTube}s for HTTP endpoints when a
+ * {@link JaxwsHttpClient} is {@linkplain JaxwsHttpClient#install(JaxwsHttpClient) installed}.
+ * <p/>
+ * Registered in {@code META-INF/services} so JAX-WS finds it. Returns
+ * {@code null}, i.e. lets JAX-WS use its default transport, otherwise.
+ *
+ * @author Christer Sandberg
+ */
+public class JaxwsTransportTubeFactory extends TransportTubeFactory {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tube doCreate(ClientTubeAssemblerContext context) {
+        JaxwsHttpClient client = JaxwsHttpClient.getInstalled();
+        if (client == null)
+            return null;
+
+        String scheme = context.getAddress().getURI().getScheme();
+        if (!"http".equalsIgnoreCase(scheme))
+            return null;
+
+        return new JaxwsTransportTube(context.getCodec(), client, context.getBinding());
+    }
+
+}
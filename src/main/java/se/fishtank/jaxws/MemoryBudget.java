@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server wide budget for the bytes of requests and responses in flight.
+ * <p/>
+ * {@link JaxwsAdmissionHandler} reserves the content length of a request, at most the max
+ * content length, when its headers are received, and any content beyond that as it's
+ * received, and the response content when it's written. Everything is released once the
+ * response is written. A request that doesn't fit is either rejected with
+ * {@code 503 Service Unavailable}, or waits with reads on its connection suspended until
+ * enough memory is released. A request is always accepted when nothing is reserved, so
+ * requests larger than the budget make progress too.
+ *
+ * @author Christer Sandberg
+ */
+public class MemoryBudget {
+
+    /** Max number of bytes in flight. */
+    private final long maxBytes;
+
+    /** Whether to reject requests that don't fit instead of waiting. */
+    private final boolean rejectWhenExhausted;
+
+    /** Callbacks to run when memory is released. */
+    private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Whether the current thread is notifying waiters, {@code Boolean.TRUE} if memory
+     * was released meanwhile, so waiters releasing memory aren't notified recursively.
+     */
+    private final ThreadLocal<Boolean> notifying = new ThreadLocal<Boolean>();
+
+    private final AtomicLong used = new AtomicLong();
+
+    /** Incremented every time memory is released. */
+    private final AtomicLong releaseSequence = new AtomicLong();
+
+    private final AtomicLong highWaterMark = new AtomicLong();
+
+    private final AtomicLong suspensions = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Create a new instance where requests wait for memory.
+     *
+     * @param maxBytes Max number of bytes in flight.
+     */
+    public MemoryBudget(long maxBytes) {
+        this(maxBytes, false);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxBytes Max number of bytes in flight.
+     * @param rejectWhenExhausted Whether to reject requests that don't fit instead of waiting.
+     */
+    public MemoryBudget(long maxBytes, boolean rejectWhenExhausted) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be a positive integer: " + maxBytes);
+
+        this.maxBytes = maxBytes;
+        this.rejectWhenExhausted = rejectWhenExhausted;
+    }
+
+    /**
+     * Reserve memory if it fits within the budget, or if nothing is reserved.
+     *
+     * @param bytes Number of bytes.
+     * @return {@code true} if the memory was reserved.
+     */
+    public boolean tryReserve(long bytes) {
+        for (;;) {
+            long current = used.get();
+            long next = current + bytes;
+            if (current > 0 && next > maxBytes)
+                return false;
+
+            if (used.compareAndSet(current, next)) {
+                updateHighWaterMark(next);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserve memory regardless of the budget, e.g. for memory that's already allocated.
+     *
+     * @param bytes Number of bytes.
+     */
+    public void reserve(long bytes) {
+        updateHighWaterMark(used.addAndGet(bytes));
+    }
+
+    /**
+     * Reserve memory if it fits within the budget, or if nothing is reserved, and
+     * otherwise run a callback once memory is released. The callback is run from
+     * the thread releasing memory, so it should only schedule work, and it's run
+     * at most once.
+     *
+     * @param bytes Number of bytes.
+     * @param waiter The callback.
+     * @return {@code true} if the memory was reserved, {@code false} if the callback will be run.
+     */
+    public boolean reserveOrAwait(long bytes, Runnable waiter) {
+        for (;;) {
+            long sequence = releaseSequence.get();
+            if (tryReserve(bytes))
+                return true;
+
+            waiters.offer(waiter);
+
+            // Try again if memory was released before the waiter was added, unless it's already notified.
+            if (releaseSequence.get() == sequence || !waiters.remove(waiter))
+                return false;
+        }
+    }
+
+    /**
+     * Release reserved memory and notify waiters.
+     *
+     * @param bytes Number of bytes.
+     */
+    public void release(long bytes) {
+        if (bytes == 0)
+            return;
+
+        long current = used.addAndGet(-bytes);
+        releaseSequence.incrementAndGet();
+        if (current < maxBytes)
+            notifyWaiters();
+    }
+
+    /**
+     * Checks whether requests that don't fit are rejected instead of waiting.
+     *
+     * @return {@code true} if requests are rejected.
+     */
+    public boolean isRejectWhenExhausted() {
+        return rejectWhenExhausted;
+    }
+
+    /**
+     * Get the max number of bytes in flight.
+     *
+     * @return Max number of bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Get the number of bytes currently reserved.
+     *
+     * @return Number of bytes.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Get the highest number of bytes reserved at any time.
+     *
+     * @return Number of bytes.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    /**
+     * Get the number of times reads were suspended on a connection to wait for memory.
+     *
+     * @return Number of suspensions.
+     */
+    public long getSuspensions() {
+        return suspensions.get();
+    }
+
+    /**
+     * Get the number of requests rejected because they didn't fit.
+     *
+     * @return Number of rejections.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Count a suspension.
+     */
+    void suspended() {
+        suspensions.incrementAndGet();
+    }
+
+    /**
+     * Count a rejection.
+     */
+    void rejected() {
+        rejections.incrementAndGet();
+    }
+
+    private void notifyWaiters() {
+        if (notifying.get() != null) {
+            notifying.set(Boolean.TRUE);
+            return;
+        }
+
+        try {
+            do {
+                notifying.set(Boolean.FALSE);
+
+                // Only the waiters present now, since they may add themselves again.
+                for (int i = waiters.size(); i > 0; i--) {
+                    Runnable waiter = waiters.poll();
+                    if (waiter == null)
+                        break;
+
+                    waiter.run();
+                }
+            } while (notifying.get() && used.get() < maxBytes);
+        } finally {
+            notifying.remove();
+        }
+    }
+
+    private void updateHighWaterMark(long value) {
+        for (;;) {
+            long current = highWaterMark.get();
+            if (value <= current || highWaterMark.compareAndSet(current, value))
+                return;
+        }
+    }
+
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.buffer.AbstractChannelBufferFactory;
+import org.jboss.netty.buffer.ByteBufferBackedChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A {@link ChannelBufferFactory} that recycles heap or direct buffers in power of two size classes.
+ * <p/>
+ * Netty 3 buffers aren't reference counted, so only buffers taken with {@link #acquire(int)}
+ * are pooled, and they must be explicitly {@linkplain #release(ChannelBuffer) released}, which
+ * {@link JaxwsHandler} does with the response content once it's written. All other buffers,
+ * e.g. the ones Netty reads into and the request content its decoders create, are plain heap
+ * buffers that are simply garbage collected, so no pooled chunk is lost to code that never
+ * releases it. Acquired buffers can be checked for leaks, i.e. buffers that were garbage
+ * collected without being released.
+ *
+ * @author Christer Sandberg
+ */
+public class PooledChannelBufferFactory extends AbstractChannelBufferFactory {
+
+    private static final Logger logger = Logger.getLogger(PooledChannelBufferFactory.class.getName());
+
+    /** Smallest size class, 256 bytes. */
+    private static final int MIN_SHIFT = 8;
+
+    /** Largest size class, 1 MB. */
+    private static final int MAX_SHIFT = 20;
+
+    /** Max number of leaks to log. */
+    private static final int MAX_LOGGED_LEAKS = 10;
+
+    /** Whether to pool direct or heap buffers. */
+    private final boolean direct;
+
+    /** Max number of free buffers per size class. */
+    private final int maxPooledPerClass;
+
+    /** Free buffers per size class. */
+    private final Pool[] pools;
+
+    /** Leak tracking or {@code null} if disabled. */
+    private final ReferenceQueue<PooledChannelBuffer> leakQueue;
+
+    /** Tracked buffers not yet released. */
+    private final Map<LeakReference, Boolean> tracked;
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    private final AtomicLong reuses = new AtomicLong();
+
+    private final AtomicLong releases = new AtomicLong();
+
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * Create a new instance without leak detection and at most 256 free buffers per size class.
+     *
+     * @param direct Whether to pool direct or heap buffers. Buffers that aren't acquired are always heap buffers.
+     */
+    public PooledChannelBufferFactory(boolean direct) {
+        this(direct, 256, false);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param direct Whether to pool direct or heap buffers. Buffers that aren't acquired are always heap buffers.
+     * @param maxPooledPerClass Max number of free buffers per size class.
+     * @param leakDetection Whether to detect {@linkplain #acquire(int) acquired} buffers that are never released.
+     */
+    public PooledChannelBufferFactory(boolean direct, int maxPooledPerClass, boolean leakDetection) {
+        this.direct = direct;
+        this.maxPooledPerClass = maxPooledPerClass;
+        this.pools = new Pool[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < pools.length; i++)
+            pools[i] = new Pool();
+
+        this.leakQueue = leakDetection ? new ReferenceQueue<PooledChannelBuffer>() : null;
+        this.tracked = leakDetection ? new ConcurrentHashMap<LeakReference, Boolean>() : null;
+    }
+
+    /**
+     * Release a buffer to its pool if it's a pooled buffer.
+     * <p/>
+     * The buffer, or any duplicate or slice of it, must not be used afterwards.
+     *
+     * @param buffer The buffer.
+     * @return {@code true} if the buffer was returned to a pool.
+     */
+    public static boolean release(ChannelBuffer buffer) {
+        return buffer instanceof PooledChannelBuffer && ((PooledChannelBuffer) buffer).release();
+    }
+
+    /**
+     * Acquire a buffer that must be {@linkplain #release(ChannelBuffer) released}.
+     *
+     * @param capacity Capacity of the buffer.
+     * @return A buffer.
+     */
+    public ChannelBuffer acquire(int capacity) {
+        if (capacity == 0)
+            return ChannelBuffers.EMPTY_BUFFER;
+
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass == -1)
+            return direct ? ChannelBuffers.directBuffer(capacity) : ChannelBuffers.buffer(capacity);
+
+        pollLeaks();
+
+        Pool pool = pools[sizeClass];
+        ByteBuffer chunk = pool.free.poll();
+        if (chunk == null) {
+            int size = 1 << (sizeClass + MIN_SHIFT);
+            chunk = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            allocations.incrementAndGet();
+        } else {
+            pool.size.decrementAndGet();
+            reuses.incrementAndGet();
+        }
+
+        ByteBuffer slice = chunk.duplicate();
+        slice.clear().limit(capacity);
+        PooledChannelBuffer buffer = new PooledChannelBuffer(this, slice.slice(), chunk, sizeClass);
+        if (leakQueue != null) {
+            buffer.leakReference = new LeakReference(buffer, leakQueue);
+            tracked.put(buffer.leakReference, Boolean.TRUE);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Get an unpooled heap buffer, since callers of this method don't release their buffers.
+     *
+     * @param order Byte order of the buffer.
+     * @param capacity Capacity of the buffer.
+     * @return A buffer.
+     */
+    @Override
+    public ChannelBuffer getBuffer(ByteOrder order, int capacity) {
+        return capacity == 0 ? ChannelBuffers.EMPTY_BUFFER : ChannelBuffers.buffer(order, capacity);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ChannelBuffer getBuffer(ByteOrder order, byte[] array, int offset, int length) {
+        ChannelBuffer buffer = getBuffer(order, length);
+        buffer.writeBytes(array, offset, length);
+        return buffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ChannelBuffer getBuffer(ByteBuffer nioBuffer) {
+        ChannelBuffer buffer = getBuffer(nioBuffer.order(), nioBuffer.remaining());
+        buffer.writeBytes(nioBuffer.duplicate());
+        return buffer;
+    }
+
+    /**
+     * Get the number of buffers allocated because none was free.
+     *
+     * @return Number of allocations.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Get the number of buffers taken from a pool.
+     *
+     * @return Number of reuses.
+     */
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    /**
+     * Get the number of released buffers.
+     *
+     * @return Number of releases.
+     */
+    public long getReleases() {
+        return releases.get();
+    }
+
+    /**
+     * Get the number of acquired buffers that were garbage collected without being released.
+     * Always {@code 0} if leak detection is disabled.
+     *
+     * @return Number of leaks.
+     */
+    public long getLeaks() {
+        pollLeaks();
+        return leaks.get();
+    }
+
+    /**
+     * Put a chunk back in its pool.
+     */
+    void recycle(ByteBuffer chunk, int sizeClass, LeakReference leakReference) {
+        releases.incrementAndGet();
+        if (leakReference != null) {
+            tracked.remove(leakReference);
+            leakReference.clear();
+        }
+
+        Pool pool = pools[sizeClass];
+        if (pool.size.incrementAndGet() <= maxPooledPerClass) {
+            pool.free.offer(chunk);
+        } else {
+            pool.size.decrementAndGet();
+        }
+    }
+
+    private void pollLeaks() {
+        if (leakQueue == null)
+            return;
+
+        Reference<? extends PooledChannelBuffer> ref;
+        while ((ref = leakQueue.poll()) != null) {
+            LeakReference leak = (LeakReference) ref;
+            if (tracked.remove(leak) == null)
+                continue;
+
+            if (leaks.incrementAndGet() <= MAX_LOGGED_LEAKS)
+                logger.log(Level.WARNING, "Buffer garbage collected without being released", leak.allocation);
+        }
+    }
+
+    private static int sizeClass(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        if (shift > MAX_SHIFT)
+            return -1;
+
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    /**
+     * Free buffers of a size class.
+     */
+    private static final class Pool {
+
+        final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /** Number of free buffers, since the size of the queue isn't constant time. */
+        final AtomicInteger size = new AtomicInteger();
+
+    }
+
+    /**
+     * Tracks an acquired buffer.
+     */
+    private static final class LeakReference extends PhantomReference<PooledChannelBuffer> {
+
+        /** Where the buffer was acquired. */
+        final Throwable allocation = new Throwable("Buffer acquired here");
+
+        LeakReference(PooledChannelBuffer buffer, ReferenceQueue<PooledChannelBuffer> queue) {
+            super(buffer, queue);
+        }
+
+    }
+
+    /**
+     * A buffer backed by a pooled chunk.
+     */
+    private static final class PooledChannelBuffer extends ByteBufferBackedChannelBuffer {
+
+        final PooledChannelBufferFactory owner;
+
+        final ByteBuffer chunk;
+
+        final int sizeClass;
+
+        final AtomicBoolean released = new AtomicBoolean(false);
+
+        volatile LeakReference leakReference;
+
+        PooledChannelBuffer(PooledChannelBufferFactory owner, ByteBuffer buffer, ByteBuffer chunk, int sizeClass) {
+            super(buffer);
+            this.owner = owner;
+            this.chunk = chunk;
+            this.sizeClass = sizeClass;
+
+            // The super class considers the buffer full.
+            clear();
+        }
+
+        @Override
+        public ChannelBufferFactory factory() {
+            return owner;
+        }
+
+        boolean release() {
+            if (!released.compareAndSet(false, true))
+                return false;
+
+            owner.recycle(chunk, sizeClass, leakReference);
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sun.xml.ws.transport.http.HttpAdapter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Coalesces identical concurrent requests to an endpoint into a single invocation.
+ * <p/>
+ * Requests are considered identical if they have the same context path, content type,
+ * operation ({@code SOAPAction}) and body. The first such request is handled as usual,
+ * and the ones arriving while it's in flight get a copy of its response when it completes.
+ * A waiting request doesn't block the thread it arrived on, instead its {@link Listener}
+ * is notified when its response is ready. If the wait times out, or if the in-flight
+ * invocation fails, the listener is notified that the request must be handled independently.
+ *
+ * @author Christer Sandberg
+ */
+public final class RequestCoalescer {
+
+    /** In-flight invocations. */
+    private final ConcurrentMap<Key, Call> inFlight = new ConcurrentHashMap<Key, Call>();
+
+    /** Max time in nanoseconds to wait for an in-flight invocation. */
+    private final long timeoutNanos;
+
+    /** Operations to coalesce or {@code null} for all. */
+    private final Set<String> operations;
+
+    /**
+     * Create a new instance that coalesces all operations.
+     *
+     * @param timeout Max time to wait for an in-flight invocation.
+     * @param unit Time unit of {@code timeout}.
+     */
+    public RequestCoalescer(long timeout, TimeUnit unit) {
+        this(timeout, unit, null);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param timeout Max time to wait for an in-flight invocation.
+     * @param unit Time unit of {@code timeout}.
+     * @param operations Operations ({@code SOAPAction} values) to coalesce or {@code null} for all.
+     */
+    public RequestCoalescer(long timeout, TimeUnit unit, Set<String> operations) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout: " + timeout);
+
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.operations = operations == null ? null :
+                Collections.unmodifiableSet(new HashSet<String>(operations));
+    }
+
+    /**
+     * Handle a request, coalescing it with an identical in-flight one if possible.
+     * <p/>
+     * If there's an identical request in flight the request waits for it, and this method
+     * returns {@code false} without handling it. The listener is notified exactly once when the
+     * in-flight invocation completes or the wait times out, from the thread that completes
+     * the invocation or the timer thread. Otherwise the request is handled before this method
+     * returns {@code true}.
+     *
+     * @param adapter HTTP adapter for the endpoint.
+     * @param connection JAX-WS connection for the request.
+     * @param request HTTP request.
+     * @param response HTTP response.
+     * @param timer Timer for the wait.
+     * @param listener Listener notified when a waiting request can be completed.
+     * @return {@code true} if the request is handled, {@code false} if it's waiting.
+     * @throws IOException If the adapter fails to handle the request.
+     */
+    public boolean handle(HttpAdapter adapter, JaxwsConnection connection, HttpRequest request,
+                          HttpResponse response, Timer timer, Listener listener) throws IOException {
+        String operation = getOperation(request);
+        if (timeoutNanos == 0 || (operations != null && !operations.contains(operation))) {
+            adapter.handle(connection);
+            return true;
+        }
+
+        Key key = new Key(connection.getContextPath(), request.getHeader(HttpHeaders.Names.CONTENT_TYPE),
+                operation, request.getContent());
+
+        Call call = new Call();
+        Call leader = inFlight.putIfAbsent(key, call);
+        if (leader == null) {
+            Result result = null;
+            try {
+                adapter.handle(connection);
+                result = new Result(response);
+            } finally {
+                inFlight.remove(key, call);
+                call.complete(result);
+            }
+
+            return true;
+        }
+
+        Waiter waiter = new Waiter(response, listener);
+        waiter.timeout = timer.newTimeout(leader.timeoutTask(waiter), timeoutNanos, TimeUnit.NANOSECONDS);
+        if (leader.add(waiter) || !waiter.finish())
+            return false;
+
+        // Completed after it was looked up.
+        waiter.timeout.cancel();
+        Result result = leader.result;
+        if (result == null) {
+            adapter.handle(connection);
+        } else {
+            result.copyTo(response);
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the operation of a request, i.e. the {@code SOAPAction} header for SOAP 1.1
+     * or the {@code action} parameter of the content type for SOAP 1.2.
+     *
+     * @param request HTTP request.
+     * @return The operation or an empty string if none is specified.
+     */
+    static String getOperation(HttpRequest request) {
+        String action = request.getHeader("SOAPAction");
+        if (action == null) {
+            String contentType = request.getHeader(HttpHeaders.Names.CONTENT_TYPE);
+            if (contentType != null) {
+                for (String param : contentType.split(";")) {
+                    param = param.trim();
+                    if (param.regionMatches(true, 0, "action=", 0, 7)) {
+                        action = param.substring(7);
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (action == null)
+            return "";
+
+        action = action.trim();
+        if (action.length() > 1 && action.startsWith("\"") && action.endsWith("\""))
+            action = action.substring(1, action.length() - 1);
+
+        return action;
+    }
+
+    /**
+     * Identifies a request.
+     */
+    private static final class Key {
+
+        final String contextPath;
+
+        final String contentType;
+
+        final String operation;
+
+        /** Duplicate of the request content so reading the request doesn't change it. */
+        final ChannelBuffer content;
+
+        final int hash;
+
+        Key(String contextPath, String contentType, String operation, ChannelBuffer content) {
+            this.contextPath = contextPath;
+            this.contentType = contentType == null ? "" : contentType;
+            this.operation = operation;
+            this.content = content.duplicate();
+
+            int h = this.contextPath.hashCode();
+            h = 31 * h + this.contentType.hashCode();
+            h = 31 * h + this.operation.hashCode();
+            this.hash = 31 * h + this.content.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+            return hash == other.hash && contextPath.equals(other.contextPath) &&
+                    contentType.equals(other.contentType) && operation.equals(other.operation) &&
+                    content.equals(other.content);
+        }
+
+    }
+
+    /**
+     * Notified when a request that waits for an in-flight invocation can be completed.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the response of the in-flight invocation has been copied to the response
+         * of the waiting request.
+         */
+        void responseReady();
+
+        /**
+         * Called when the in-flight invocation failed, or the wait timed out, and the waiting
+         * request must be handled independently.
+         */
+        void invocationAbandoned();
+
+    }
+
+    /**
+     * An in-flight invocation.
+     */
+    private static final class Call {
+
+        /** Requests waiting for the invocation, or {@code null} when it's complete. */
+        List<Waiter> waiters = new ArrayList<Waiter>();
+
+        /** The result or {@code null} if the invocation failed. */
+        volatile Result result;
+
+        /**
+         * Add a waiting request.
+         *
+         * @return {@code false} if the invocation is already complete.
+         */
+        synchronized boolean add(Waiter waiter) {
+            if (waiters == null)
+                return false;
+
+            waiters.add(waiter);
+            return true;
+        }
+
+        synchronized void remove(Waiter waiter) {
+            if (waiters != null)
+                waiters.remove(waiter);
+        }
+
+        void complete(Result result) {
+            this.result = result;
+
+            List<Waiter> completed;
+            synchronized (this) {
+                completed = waiters;
+                waiters = null;
+            }
+
+            for (Waiter waiter : completed) {
+                if (!waiter.finish())
+                    continue;
+
+                waiter.timeout.cancel();
+                if (result == null) {
+                    waiter.listener.invocationAbandoned();
+                } else {
+                    result.copyTo(waiter.response);
+                    waiter.listener.responseReady();
+                }
+            }
+        }
+
+        TimerTask timeoutTask(final Waiter waiter) {
+            return new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    if (waiter.finish()) {
+                        remove(waiter);
+                        waiter.listener.invocationAbandoned();
+                    }
+                }
+            };
+        }
+
+    }
+
+    /**
+     * A request waiting for an in-flight invocation.
+     */
+    private static final class Waiter {
+
+        final HttpResponse response;
+
+        final Listener listener;
+
+        /** Whether the listener is, or is about to be, notified. */
+        final AtomicBoolean finished = new AtomicBoolean();
+
+        /** Timeout for the wait, set before the waiter is added. */
+        volatile Timeout timeout;
+
+        Waiter(HttpResponse response, Listener listener) {
+            this.response = response;
+            this.listener = listener;
+        }
+
+        /**
+         * Finish the wait, either when the invocation completes or when the wait times out.
+         *
+         * @return {@code true} the first time only.
+         */
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+
+    }
+
+    /**
+     * Snapshot of a response.
+     */
+    private static final class Result {
+
+        final int status;
+
+        final List<Map.Entry<String, String>> headers;
+
+        final byte[] content;
+
+        Result(HttpResponse response) {
+            this.status = response.getStatus().getCode();
+            this.headers = new ArrayList<Map.Entry<String, String>>();
+            for (Map.Entry<String, String> header : response.getHeaders())
+                headers.add(new AbstractMap.SimpleImmutableEntry<String, String>(header));
+
+            ChannelBuffer buffer = response.getContent();
+            this.content = new byte[buffer.readableBytes()];
+            buffer.getBytes(buffer.readerIndex(), content);
+        }
+
+        void copyTo(HttpResponse response) {
+            response.setStatus(HttpResponseStatus.valueOf(status));
+            for (Map.Entry<String, String> header : headers)
+                response.addHeader(header.getKey(), header.getValue());
+
+            response.setContent(ChannelBuffers.wrappedBuffer(content));
+        }
+
+    }
+
+}
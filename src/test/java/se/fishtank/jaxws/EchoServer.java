@@ -6,6 +6,7 @@ package se.fishtank.jaxws;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple JAX-WS server sample.
@@ -20,7 +21,12 @@ public class EchoServer {
         Map<String, Object> mappings = new HashMap<String, Object>(1);
         mappings.put("/echoService", echoWebService);
 
+        EndpointWarmup warmup = new EndpointWarmup(1000, 10, TimeUnit.SECONDS);
+        warmup.addSample("/echoService", null, ("<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+                "<S:Body><echoRequest xmlns=\"http://fishtank.se\" value=\"warm-up\"/></S:Body></S:Envelope>").getBytes("UTF-8"));
+
         JaxWsServer server = new JaxWsServer();
+        server.setWarmup(warmup);
         server.start(new InetSocketAddress("localhost", 4040), mappings);
 
         System.out.println("WSDL published at http://localhost:4040/echoService?wsdl");
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link JaxwsAdmissionHandler} with a {@link MemoryBudget}.
+ *
+ * @author Christer Sandberg
+ */
+public class JaxwsAdmissionHandlerTest {
+
+    private static final int PORT = 4047;
+
+    /** Max content length of the server, i.e. the most that's reserved for a request. */
+    private static final int MAX_CONTENT_LENGTH = 65536;
+
+    private static final String URL = "http://localhost:" + PORT + "/echoService";
+
+    private static final String ENVELOPE = "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<S:Body><echoRequest xmlns=\"http://fishtank.se\" value=\"x\"/></S:Body></S:Envelope>";
+
+    private JaxWsServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void stalledBodyReleasesReservationOnTimeout() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+        startServer(budget, 500);
+
+        Socket stalled = sendStalledRequest();
+        try {
+            // At most the max content length is reserved, whatever the client claims.
+            awaitUsed(budget, MAX_CONTENT_LENGTH);
+
+            awaitUsed(budget, 0);
+            stalled.setSoTimeout(5000);
+            assertEquals(-1, stalled.getInputStream().read());
+        } finally {
+            stalled.close();
+        }
+    }
+
+    @Test
+    public void parkedRequestIsAcceptedWhenMemoryIsReleased() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+        startServer(budget, 1000);
+
+        // Warm up so the request isn't slowed down by the first invocation. The response is
+        // released once it's written, which may be after the client has read it.
+        assertEquals(200, post(ENVELOPE));
+        awaitUsed(budget, 0);
+
+        Socket stalled = sendStalledRequest();
+        try {
+            awaitUsed(budget, MAX_CONTENT_LENGTH);
+
+            // Waits for the stalled request's reservation to be released by the body timeout.
+            long start = System.nanoTime();
+            assertEquals(200, post(ENVELOPE));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 500);
+            assertEquals(1, budget.getSuspensions());
+            assertEquals(0, budget.getRejections());
+        } finally {
+            stalled.close();
+        }
+
+        awaitUsed(budget, 0);
+        assertTrue(budget.getHighWaterMark() >= MAX_CONTENT_LENGTH);
+    }
+
+    @Test
+    public void requestIsRejectedWhenMemoryIsExhausted() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000, true);
+        startServer(budget, 1000);
+
+        Socket stalled = sendStalledRequest();
+        try {
+            awaitUsed(budget, MAX_CONTENT_LENGTH);
+            assertEquals(503, post(ENVELOPE));
+            assertEquals(1, budget.getRejections());
+            assertEquals(0, budget.getSuspensions());
+        } finally {
+            stalled.close();
+        }
+
+        awaitUsed(budget, 0);
+        assertEquals(200, post(ENVELOPE));
+    }
+
+    private void startServer(MemoryBudget budget, long bodyTimeoutMillis) {
+        Map<String, Object> mappings = new HashMap<String, Object>();
+        mappings.put("/echoService", new EchoWebService());
+
+        server = new JaxWsServer();
+        server.setMemoryBudget(budget);
+        server.setRequestBodyTimeout(bodyTimeoutMillis, TimeUnit.MILLISECONDS);
+        assertTrue(server.start(new InetSocketAddress("localhost", PORT), mappings));
+    }
+
+    /**
+     * Send the headers of a large request, and a part of its content, and then nothing more.
+     */
+    private static Socket sendStalledRequest() throws IOException {
+        Socket socket = new Socket("localhost", PORT);
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST /echoService HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/xml; charset=utf-8\r\n" +
+                "Content-Length: 50000000\r\n\r\n").getBytes("US-ASCII"));
+        out.write(new byte[100]);
+        out.flush();
+        return socket;
+    }
+
+    private static void awaitUsed(MemoryBudget budget, long expected) throws InterruptedException {
+        for (int i = 0; i < 100 && budget.getUsed() != expected; i++)
+            Thread.sleep(50);
+
+        assertEquals(expected, budget.getUsed());
+    }
+
+    private static int post(String envelope) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(URL).openConnection();
+        connection.setReadTimeout(5000);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(envelope.getBytes("UTF-8"));
+        out.close();
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            while (in.read() != -1) {
+                // Discard the content.
+            }
+
+            in.close();
+        }
+
+        return status;
+    }
+
+}
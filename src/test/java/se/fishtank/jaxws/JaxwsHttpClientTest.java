@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link JaxwsHttpClient} against a server that misbehaves on purpose.
+ *
+ * @author Christer Sandberg
+ */
+public class JaxwsHttpClientTest {
+
+    private ScriptedServer server;
+
+    private JaxwsHttpClient client;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ScriptedServer();
+        server.start();
+    }
+
+    @After
+    public void stop() throws IOException {
+        try {
+            if (client != null)
+                client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void requestOnConnectionClosedByServerIsRetried() throws Exception {
+        client = new JaxwsHttpClient(1, 1, 1000, 5000, 0, TimeUnit.MILLISECONDS, 1024);
+        server.script(Action.RESPOND, Action.CLOSE, Action.RESPOND);
+
+        assertEquals(200, execute().getStatus().getCode());
+        assertEquals(200, execute().getStatus().getCode());
+        assertEquals(3, server.requests.get());
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void requestIsRetriedOnlyOnce() throws Exception {
+        client = new JaxwsHttpClient(1, 1, 1000, 5000, 0, TimeUnit.MILLISECONDS, 1024);
+        server.script(Action.RESPOND, Action.CLOSE, Action.CLOSE, Action.RESPOND);
+
+        assertEquals(200, execute().getStatus().getCode());
+        assertNotNull(executeAndFail());
+        assertEquals(3, server.requests.get());
+    }
+
+    @Test
+    public void requestOnNewConnectionIsNotRetried() throws Exception {
+        client = new JaxwsHttpClient(1, 1, 1000, 5000, 0, TimeUnit.MILLISECONDS, 1024);
+        server.script(Action.CLOSE, Action.RESPOND);
+
+        assertNotNull(executeAndFail());
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void requestWithPartialResponseIsNotRetried() throws Exception {
+        client = new JaxwsHttpClient(1, 1, 1000, 5000, 0, TimeUnit.MILLISECONDS, 1024);
+        server.script(Action.RESPOND, Action.PARTIAL, Action.RESPOND);
+
+        assertEquals(200, execute().getStatus().getCode());
+        assertNotNull(executeAndFail());
+        assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void idleConnectionIsClosed() throws Exception {
+        client = new JaxwsHttpClient(1, 1, 1000, 5000, 200, TimeUnit.MILLISECONDS, 1024);
+        server.script(Action.RESPOND, Action.RESPOND);
+
+        assertEquals(200, execute().getStatus().getCode());
+        assertTrue(server.closed.await(5, TimeUnit.SECONDS));
+
+        // A new connection is opened for the next request.
+        assertEquals(200, execute().getStatus().getCode());
+        assertEquals(2, server.connections.get());
+    }
+
+    private HttpResponse execute() throws Exception {
+        Outcome outcome = new Outcome();
+        client.execute(server.address, newRequest(), 0, outcome);
+        assertTrue(outcome.done.await(10, TimeUnit.SECONDS));
+        if (outcome.cause.get() != null)
+            throw new AssertionError("Request failed: " + outcome.cause.get());
+
+        return outcome.response.get();
+    }
+
+    private Throwable executeAndFail() throws Exception {
+        Outcome outcome = new Outcome();
+        client.execute(server.address, newRequest(), 0, outcome);
+        assertTrue(outcome.done.await(10, TimeUnit.SECONDS));
+        if (outcome.response.get() != null)
+            throw new AssertionError("Request didn't fail: " + outcome.response.get());
+
+        return outcome.cause.get();
+    }
+
+    private HttpRequest newRequest() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/");
+        request.setHeader(HttpHeaders.Names.HOST, "localhost:" + server.address.getPort());
+        request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, 0);
+        return request;
+    }
+
+    /**
+     * The outcome of a request.
+     */
+    private static final class Outcome implements JaxwsHttpClient.ResponseListener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final AtomicReference<HttpResponse> response = new AtomicReference<HttpResponse>();
+
+        final AtomicReference<Throwable> cause = new AtomicReference<Throwable>();
+
+        @Override
+        public void responseReceived(HttpResponse response) {
+            this.response.set(response);
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            this.cause.set(cause);
+            done.countDown();
+        }
+
+    }
+
+    /**
+     * What the server does with a request.
+     */
+    private enum Action {
+
+        /** Respond with keep-alive. */
+        RESPOND,
+
+        /** Close the connection without responding. */
+        CLOSE,
+
+        /** Respond with a part of the status line and close the connection. */
+        PARTIAL
+
+    }
+
+    /**
+     * A server that handles each request, on any connection, with the next scripted action.
+     */
+    private static final class ScriptedServer extends Thread {
+
+        final ServerSocket serverSocket;
+
+        final InetSocketAddress address;
+
+        final BlockingQueue<Action> actions = new LinkedBlockingQueue<Action>();
+
+        final AtomicInteger connections = new AtomicInteger();
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        /** Counted down when a client closes a connection. */
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        ScriptedServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+            address = new InetSocketAddress("localhost", serverSocket.getLocalPort());
+            setDaemon(true);
+        }
+
+        void script(Action... script) {
+            for (Action action : script)
+                actions.add(action);
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread handler = new Thread() {
+                        @Override
+                        public void run() {
+                            handle(socket);
+                        }
+                    };
+
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void handle(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                while (readRequest(in)) {
+                    requests.incrementAndGet();
+                    Action action = actions.poll(5, TimeUnit.SECONDS);
+                    if (action == Action.RESPOND) {
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 2\r\n" +
+                                "Connection: keep-alive\r\n\r\nok").getBytes("US-ASCII"));
+                        out.flush();
+                    } else {
+                        if (action == Action.PARTIAL) {
+                            out.write("HTTP/1.1 200".getBytes("US-ASCII"));
+                            out.flush();
+                        }
+
+                        socket.close();
+                        return;
+                    }
+                }
+
+                closed.countDown();
+                socket.close();
+            } catch (Exception e) {
+                // The connection is gone.
+            }
+        }
+
+        /**
+         * Read the headers of a request, which has no content.
+         *
+         * @return {@code false} if the client closed the connection.
+         */
+        private static boolean readRequest(InputStream in) throws IOException {
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                headers.write(b);
+                if (headers.toString("US-ASCII").endsWith("\r\n\r\n"))
+                    return true;
+            }
+
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.net.InetSocketAddress;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link JaxwsRequestUrl}.
+ *
+ * @author Christer Sandberg
+ */
+public class JaxwsRequestUrlTest {
+
+    private static final String[] URIS = {
+            "", "/", "/?wsdl", "?wsdl", "/echoService", "/echoService?wsdl", "/echoService/",
+            "/echoService/extra/path?a=b", "//double", "/a?b/c", "echoService", "/echoService?"
+    };
+
+    @Test
+    public void contextPathIsTheSameAsForTheUrl() {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 4040);
+        for (String uri : URIS) {
+            JaxwsRequestUrl url = JaxwsRequestUrl.newInstance(address, false,
+                    new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri));
+            assertEquals(uri, url.contextPath, JaxwsRequestUrl.getContextPath(uri));
+        }
+    }
+
+    @Test
+    public void contextPathOfUri() {
+        assertEquals("", JaxwsRequestUrl.getContextPath("/?wsdl"));
+        assertEquals("/echoService", JaxwsRequestUrl.getContextPath("/echoService/extra?wsdl"));
+        assertEquals("/a", JaxwsRequestUrl.getContextPath("/a?b/c"));
+    }
+
+}
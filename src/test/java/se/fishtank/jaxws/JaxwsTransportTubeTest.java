@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.ws.Dispatch;
+import javax.xml.ws.Response;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.SOAPBinding;
+import javax.xml.ws.soap.SOAPFaultException;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.developer.JAXWSProperties;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link JaxwsTransportTube}, calling an embedded {@link JaxWsServer} through
+ * an {@linkplain JaxwsHttpClient#install(JaxwsHttpClient) installed} {@link JaxwsHttpClient}.
+ *
+ * @author Christer Sandberg
+ */
+public class JaxwsTransportTubeTest {
+
+    private static final int PORT = 4051;
+
+    private static final QName SERVICE = new QName("http://fishtank.se", "echoService");
+
+    private static final QName ECHO_PORT = new QName("http://fishtank.se", "echoPort");
+
+    private static JaxWsServer server;
+
+    private static JaxwsHttpClient client;
+
+    @BeforeClass
+    public static void start() {
+        Map<String, Object> mappings = new HashMap<String, Object>();
+        mappings.put("/echoService", new EchoWebService());
+
+        server = new JaxWsServer();
+        assertTrue(server.start(new InetSocketAddress("localhost", PORT), mappings));
+
+        client = new JaxwsHttpClient(4, 1, 10, 60, TimeUnit.SECONDS);
+        JaxwsHttpClient.install(client);
+    }
+
+    @AfterClass
+    public static void stop() {
+        JaxwsHttpClient.install(null);
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void synchronousCall() throws Exception {
+        Dispatch<Source> dispatch = createDispatch("http://localhost:" + PORT + "/echoService");
+        for (int i = 0; i < 3; i++)
+            assertTrue(toString(dispatch.invoke(echoRequest("sync" + i))).contains("value=\"Hello sync" + i + "\""));
+    }
+
+    @Test
+    public void callsAreSentByInstalledClient() {
+        JaxwsHttpClient closed = new JaxwsHttpClient();
+        closed.close();
+        JaxwsHttpClient.install(closed);
+        try {
+            createDispatch("http://localhost:" + PORT + "/echoService").invoke(echoRequest("closed"));
+            fail("Expected the closed client to fail the call");
+        } catch (ClientTransportException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ClosedChannelException);
+        } finally {
+            JaxwsHttpClient.install(client);
+        }
+    }
+
+    @Test
+    public void asynchronousCall() throws Exception {
+        Dispatch<Source> dispatch = createDispatch("http://localhost:" + PORT + "/echoService");
+        Response<Source> first = dispatch.invokeAsync(echoRequest("async1"));
+        Response<Source> second = dispatch.invokeAsync(echoRequest("async2"));
+
+        assertTrue(toString(first.get(10, TimeUnit.SECONDS)).contains("value=\"Hello async1\""));
+        assertTrue(toString(second.get(10, TimeUnit.SECONDS)).contains("value=\"Hello async2\""));
+    }
+
+    @Test
+    public void soapFault() {
+        Dispatch<Source> dispatch = createDispatch("http://localhost:" + PORT + "/echoService");
+        try {
+            dispatch.invoke(new StreamSource(new StringReader("<unknownRequest xmlns=\"http://fishtank.se\"/>")));
+            fail("Expected a SOAP fault");
+        } catch (SOAPFaultException e) {
+            // The fault is sent with status 500.
+        }
+    }
+
+    @Test
+    public void unsuccessfulStatus() {
+        Dispatch<Source> dispatch = createDispatch("http://localhost:" + PORT + "/unknown");
+        try {
+            dispatch.invoke(echoRequest("unknown"));
+            fail("Expected a transport failure");
+        } catch (ClientTransportException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+    }
+
+    @Test
+    public void requestTimeout() throws Exception {
+        // Accepts connections, but never responds.
+        ServerSocket silent = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+        try {
+            Dispatch<Source> dispatch = createDispatch("http://localhost:" + silent.getLocalPort() + "/echoService");
+            assertTimesOut(dispatch, 200L);
+            assertTimesOut(dispatch, "200");
+        } finally {
+            silent.close();
+        }
+    }
+
+    private static void assertTimesOut(Dispatch<Source> dispatch, Object requestTimeout) {
+        dispatch.getRequestContext().put(JAXWSProperties.REQUEST_TIMEOUT, requestTimeout);
+
+        long start = System.nanoTime();
+        try {
+            dispatch.invoke(echoRequest("timeout"));
+            fail("Expected a timeout");
+        } catch (WebServiceException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof SocketTimeoutException);
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Timed out after " + elapsed + " ms", elapsed >= 150 && elapsed < 5000);
+    }
+
+    private static Dispatch<Source> createDispatch(String address) {
+        Service service = Service.create(SERVICE);
+        service.addPort(ECHO_PORT, SOAPBinding.SOAP11HTTP_BINDING, address);
+        return service.createDispatch(ECHO_PORT, Source.class, Service.Mode.PAYLOAD);
+    }
+
+    private static Source echoRequest(String value) {
+        return new StreamSource(new StringReader("<echoRequest xmlns=\"http://fishtank.se\" value=\"" + value + "\"/>"));
+    }
+
+    private static String toString(Source source) throws Exception {
+        StringWriter writer = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(source, new StreamResult(writer));
+        return writer.toString();
+    }
+
+}
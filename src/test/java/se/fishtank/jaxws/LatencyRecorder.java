@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records latencies and reports percentiles.
+ * <p/>
+ * Latencies should be measured from the time a request was <em>intended</em>
+ * to be sent, not from when it actually was, or stalls will hide the requests
+ * that should have been sent during them (coordinated omission). When that's
+ * not possible, e.g. in a closed loop, {@link #record(long, long)} can be given
+ * the expected interval between requests to back-fill the omitted samples.
+ * <p/>
+ * Latencies are counted in buckets with a relative error below 1%, so memory
+ * use is fixed no matter how many samples are recorded or back-filled.
+ *
+ * @author Christer Sandberg
+ */
+public class LatencyRecorder {
+
+    private static final double[] PERCENTILES = { 50.0, 75.0, 90.0, 99.0, 99.9, 99.99, 100.0 };
+
+    /** Number of bits of precision within a bucket group. */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values below this are counted exactly. */
+    private static final long EXACT_LIMIT = SUB_BUCKETS << 1;
+
+    /** Counts per bucket. */
+    private final long[] counts = new long[(int) EXACT_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+
+    /** Number of recorded latencies, including back-filled ones. */
+    private long count;
+
+    /** Max recorded latency. */
+    private long max;
+
+    /** Number of actual samples, i.e. not counting back-filled ones. */
+    private long samples;
+
+    /**
+     * Record a latency.
+     *
+     * @param latency Latency in nanoseconds.
+     */
+    public synchronized void record(long latency) {
+        add(Math.max(latency, 0), 1);
+        samples++;
+    }
+
+    /**
+     * Record a latency, correcting for coordinated omission.
+     *
+     * @param latency Latency in nanoseconds.
+     * @param expectedInterval Expected interval between requests in nanoseconds or {@code 0} for none.
+     */
+    public synchronized void record(long latency, long expectedInterval) {
+        record(latency);
+        if (expectedInterval <= 0 || latency - expectedInterval < expectedInterval)
+            return;
+
+        // The omitted samples are latency - k * expectedInterval for k >= 1 as long as they're at least
+        // expectedInterval. Count them per bucket rather than one by one.
+        long last = latency - expectedInterval;
+        for (int index = bucketIndex(expectedInterval); index <= bucketIndex(last); index++) {
+            long low = Math.max(lowerBound(index), expectedInterval);
+            long high = Math.min(upperBound(index), last);
+            if (low > high)
+                continue;
+
+            long first = ceilDiv(latency - high, expectedInterval);
+            long end = (latency - low) / expectedInterval;
+            if (end >= first)
+                add(lowerBound(index), end - first + 1);
+        }
+    }
+
+    /**
+     * Get the number of actual samples.
+     *
+     * @return Number of samples.
+     */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Get the latency at a percentile.
+     *
+     * @param percentile Percentile between {@code 0} and {@code 100}.
+     * @return Latency in nanoseconds or {@code 0} if nothing is recorded.
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int index = 0; index < counts.length; index++) {
+            seen += counts[index];
+            if (seen >= rank)
+                return Math.min(upperBound(index), max);
+        }
+
+        return max;
+    }
+
+    /**
+     * Print a percentile report.
+     *
+     * @param out Stream to print to.
+     */
+    public synchronized void report(PrintStream out) {
+        out.printf("%12s %14s%n", "Percentile", "Latency (ms)");
+        for (double percentile : PERCENTILES) {
+            long nanos = getValueAtPercentile(percentile);
+            out.printf("%12s %14.3f%n", percentile, nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        out.printf("%12s %14d%n", "Samples", samples);
+        out.printf("%12s %14d%n", "Corrected", count);
+    }
+
+    private void add(long latency, long n) {
+        counts[bucketIndex(latency)] += n;
+        count += n;
+        max = Math.max(max, latency);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < EXACT_LIMIT)
+            return (int) value;
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS + 1);
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (int) EXACT_LIMIT + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < EXACT_LIMIT)
+            return index;
+
+        int shift = (index - (int) EXACT_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - (int) EXACT_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return subBucket << shift;
+    }
+
+    private static long upperBound(int index) {
+        if (index < EXACT_LIMIT)
+            return index;
+
+        int shift = (index - (int) EXACT_LIMIT) / SUB_BUCKETS + 1;
+        return lowerBound(index) + (1L << shift) - 1;
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Simple SOAP load generator.
+ * <p/>
+ * Runs either open-loop, where requests are sent at a constant rate regardless of
+ * how fast responses arrive, or closed-loop, where each connection keeps a fixed
+ * number of requests in flight. Latencies are measured from the time a request was
+ * intended to be sent so that they're not skewed by coordinated omission.
+ * <p/>
+ * Without a {@code --url} an embedded {@link JaxWsServer} with the {@link EchoWebService}
+ * is started, which makes results comparable between commits. GC activity of the whole
+ * run, buffer pool statistics if a pooled buffer factory is used, and memory budget
+ * statistics if a budget is set, are reported too.
+ * Options:
+ * <pre>
+ *     --url=http://host:port/path   Endpoint to load (default embedded echo service).
+ *     --port=4041                   Port of the embedded server.
+ *     --envelope=file               SOAP envelope to send (default echo request).
+ *     --action=uri                  SOAPAction header.
+ *     --mode=open|closed            Open-loop or closed-loop (default open).
+ *     --rate=1000                   Requests per second in open-loop mode.
+ *     --interval=0                  Expected interval in micros for closed-loop correction.
+ *     --connections=8               Number of connections.
+ *     --pipeline=1                  Max requests in flight per connection.
+ *     --keepAlive=true              Whether to reuse connections.
+ *     --warmup=5                    Warm-up seconds not recorded.
+ *     --duration=30                 Measured seconds.
+ *     --buffers=heap                Buffers of the embedded server: heap, pooled or pooled-direct.
+ *     --leakDetection=false         Whether to detect leaked pooled buffers.
+ *     --memoryBudget=0              Bytes in flight allowed in the embedded server, 0 for no limit.
+ *     --rejectWhenExhausted=false   Whether to reject requests over the memory budget instead of waiting.
+ * </pre>
+ *
+ * @author Christer Sandberg
+ */
+public class LoadGenerator {
+
+    private static final String ECHO_ENVELOPE =
+            "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<S:Body><echoRequest xmlns=\"http://fishtank.se\" value=\"load\"/></S:Body></S:Envelope>";
+
+    private final URI uri;
+
+    private final InetSocketAddress address;
+
+    private final ChannelBuffer body;
+
+    private final String action;
+
+    private final boolean openLoop;
+
+    private final int rate;
+
+    private final long expectedInterval;
+
+    private final int pipeline;
+
+    private final boolean keepAlive;
+
+    private final LatencyRecorder recorder = new LatencyRecorder();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    /** Requests not completed when the run ended. */
+    private final AtomicLong incomplete = new AtomicLong();
+
+    private final ClientBootstrap bootstrap;
+
+    private final Connection[] connections;
+
+    /** Requests intended to be sent before this time aren't recorded. */
+    private volatile long recordFrom = Long.MAX_VALUE;
+
+    private volatile boolean running = true;
+
+    public LoadGenerator(URI uri, byte[] body, String action, boolean openLoop, int rate,
+                         long expectedInterval, int connections, int pipeline, boolean keepAlive) {
+        this.uri = uri;
+        this.address = new InetSocketAddress(uri.getHost(), uri.getPort() == -1 ? 80 : uri.getPort());
+        this.body = ChannelBuffers.wrappedBuffer(body);
+        this.action = action;
+        this.openLoop = openLoop;
+        this.rate = rate;
+        this.expectedInterval = expectedInterval;
+        this.pipeline = keepAlive ? pipeline : 1;
+        this.keepAlive = keepAlive;
+
+        this.bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory());
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("keepAlive", true);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(new HttpClientCodec(), new HttpChunkAggregator(1048576));
+            }
+        });
+
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++)
+            this.connections[i] = new Connection();
+    }
+
+    /**
+     * Run the load.
+     *
+     * @param warmup Warm-up time not recorded.
+     * @param duration Measured time.
+     * @param unit Time unit.
+     * @throws InterruptedException If interrupted.
+     */
+    public void run(long warmup, long duration, TimeUnit unit) throws InterruptedException {
+        for (Connection connection : connections)
+            connection.connect().awaitUninterruptibly();
+
+        long start = System.nanoTime();
+        long measureStart = start + unit.toNanos(warmup);
+        long end = measureStart + unit.toNanos(duration);
+        recordFrom = measureStart;
+
+        if (openLoop) {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long next = start;
+            int i = 0;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+
+                connections[i++ % connections.length].submit(next);
+                next += interval;
+            }
+        } else {
+            for (Connection connection : connections) {
+                for (int i = 0; i < pipeline; i++)
+                    connection.submit(System.nanoTime());
+            }
+
+            TimeUnit.NANOSECONDS.sleep(end - start);
+        }
+
+        running = false;
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (Connection connection : connections)
+            connection.awaitIdle(drainDeadline);
+
+        for (Connection connection : connections)
+            connection.close();
+
+        bootstrap.releaseExternalResources();
+    }
+
+    /**
+     * Print the results.
+     *
+     * @param duration Measured time.
+     * @param unit Time unit.
+     */
+    public void report(long duration, TimeUnit unit) {
+        System.out.printf("Mode: %s, connections: %d, pipeline: %d, keep-alive: %s%n",
+                openLoop ? "open-loop @ " + rate + "/s" : "closed-loop", connections.length, pipeline, keepAlive);
+        System.out.printf("Throughput: %.1f/s, errors: %d, incomplete: %d%n",
+                recorder.getSamples() / (double) unit.toSeconds(duration), errors.get(), incomplete.get());
+        recorder.report(System.out);
+    }
+
+    private HttpRequest newRequest() {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null)
+            path += "?" + uri.getRawQuery();
+
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, path);
+        request.setHeader(HttpHeaders.Names.HOST, address.getHostName() + ":" + address.getPort());
+        request.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/xml; charset=utf-8");
+        request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, body.readableBytes());
+        request.setHeader("SOAPAction", "\"" + (action == null ? "" : action) + "\"");
+        request.setHeader(HttpHeaders.Names.CONNECTION,
+                keepAlive ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+        request.setContent(body.duplicate());
+        return request;
+    }
+
+    /**
+     * A client connection, reconnected after each response unless keep-alive is used.
+     */
+    private final class Connection extends SimpleChannelUpstreamHandler {
+
+        /** Intended start times of requests not yet sent. */
+        private final Queue<Long> pending = new ArrayDeque<Long>();
+
+        /** Intended start times of requests sent, in response order. */
+        private final Queue<Long> outstanding = new ArrayDeque<Long>();
+
+        private Channel channel;
+
+        ChannelFuture connect() {
+            ChannelFuture future = bootstrap.connect(address);
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        errors.incrementAndGet();
+                        return;
+                    }
+
+                    future.getChannel().getPipeline().addLast("load", Connection.this);
+                    synchronized (Connection.this) {
+                        channel = future.getChannel();
+                        drain();
+                    }
+                }
+            });
+
+            return future;
+        }
+
+        synchronized void submit(long intended) {
+            pending.add(intended);
+            drain();
+        }
+
+        synchronized void awaitIdle(long deadline) throws InterruptedException {
+            long now;
+            while (!outstanding.isEmpty() && (now = System.nanoTime()) < deadline)
+                TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+        }
+
+        void close() {
+            Channel closing;
+            synchronized (this) {
+                incomplete.addAndGet(pending.size() + outstanding.size());
+                pending.clear();
+                outstanding.clear();
+                closing = channel;
+                channel = null;
+            }
+
+            if (closing != null)
+                closing.close().awaitUninterruptibly();
+        }
+
+        private void drain() {
+            while (channel != null && channel.isConnected() && !pending.isEmpty() && outstanding.size() < pipeline) {
+                outstanding.add(pending.poll());
+                channel.write(newRequest());
+            }
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            HttpResponse response = (HttpResponse) e.getMessage();
+            long now = System.nanoTime();
+
+            long intended;
+            synchronized (this) {
+                intended = outstanding.poll();
+                if (!keepAlive) {
+                    channel = null;
+                    e.getChannel().close();
+                }
+
+                notifyAll();
+            }
+
+            if (response.getStatus().getCode() != 200)
+                errors.incrementAndGet();
+
+            if (intended >= recordFrom)
+                recorder.record(now - intended, openLoop ? 0 : expectedInterval);
+
+            synchronized (this) {
+                if (!openLoop && running)
+                    pending.add(now);
+
+                drain();
+            }
+
+            if (!keepAlive && running)
+                connect();
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            synchronized (this) {
+                if (e.getChannel() != channel)
+                    return;
+
+                errors.addAndGet(outstanding.size());
+                outstanding.clear();
+                channel = null;
+                notifyAll();
+            }
+
+            if (running)
+                connect();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            e.getChannel().close();
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (!arg.startsWith("--") || index == -1)
+                throw new IllegalArgumentException("Invalid option: " + arg);
+
+            options.put(arg.substring(2, index), arg.substring(index + 1));
+        }
+
+        JaxWsServer server = null;
+        PooledChannelBufferFactory bufferFactory = null;
+        MemoryBudget memoryBudget = null;
+        String url = options.get("url");
+        if (url == null) {
+            int port = Integer.parseInt(option(options, "port", "4041"));
+            Map<String, Object> mappings = new HashMap<String, Object>(1);
+            mappings.put("/echoService", new EchoWebService());
+
+            String buffers = option(options, "buffers", "heap");
+            if (!"heap".equals(buffers))
+                bufferFactory = new PooledChannelBufferFactory("pooled-direct".equals(buffers), 256,
+                        Boolean.parseBoolean(option(options, "leakDetection", "false")));
+
+            long maxBytes = Long.parseLong(option(options, "memoryBudget", "0"));
+            if (maxBytes > 0)
+                memoryBudget = new MemoryBudget(maxBytes,
+                        Boolean.parseBoolean(option(options, "rejectWhenExhausted", "false")));
+
+            server = new JaxWsServer();
+            server.setBufferFactory(bufferFactory);
+            server.setMemoryBudget(memoryBudget);
+            server.start(new InetSocketAddress("localhost", port), mappings);
+            url = "http://localhost:" + port + "/echoService";
+        }
+
+        String envelope = options.get("envelope");
+        byte[] body = envelope == null ? ECHO_ENVELOPE.getBytes(CharsetUtil.UTF_8) : readFile(new File(envelope));
+
+        long warmup = Long.parseLong(option(options, "warmup", "5"));
+        long duration = Long.parseLong(option(options, "duration", "30"));
+
+        LoadGenerator generator = new LoadGenerator(URI.create(url), body, options.get("action"),
+                !"closed".equals(option(options, "mode", "open")),
+                Integer.parseInt(option(options, "rate", "1000")),
+                TimeUnit.MICROSECONDS.toNanos(Long.parseLong(option(options, "interval", "0"))),
+                Integer.parseInt(option(options, "connections", "8")),
+                Integer.parseInt(option(options, "pipeline", "1")),
+                Boolean.parseBoolean(option(options, "keepAlive", "true")));
+
+        try {
+            long[] gcBefore = getGcStats();
+            generator.run(warmup, duration, TimeUnit.SECONDS);
+            long[] gcAfter = getGcStats();
+
+            generator.report(duration, TimeUnit.SECONDS);
+            System.out.printf("GC: %d collections, %d ms%n", gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+            if (bufferFactory != null) {
+                System.gc();
+                System.out.printf("Buffers: %d allocated, %d reused, %d released, %d leaked%n",
+                        bufferFactory.getAllocations(), bufferFactory.getReuses(),
+                        bufferFactory.getReleases(), bufferFactory.getLeaks());
+            }
+
+            if (memoryBudget != null)
+                System.out.printf("Memory: %d of %d bytes used, high water mark %d, %d suspensions, %d rejections%n",
+                        memoryBudget.getUsed(), memoryBudget.getMaxBytes(), memoryBudget.getHighWaterMark(),
+                        memoryBudget.getSuspensions(), memoryBudget.getRejections());
+        } finally {
+            if (server != null)
+                server.stop();
+        }
+    }
+
+    private static long[] getGcStats() {
+        long[] stats = new long[2];
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            stats[0] += Math.max(0, bean.getCollectionCount());
+            stats[1] += Math.max(0, bean.getCollectionTime());
+        }
+
+        return stats;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int n;
+            while (offset < bytes.length && (n = in.read(bytes, offset, bytes.length - offset)) != -1)
+                offset += n;
+
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+}
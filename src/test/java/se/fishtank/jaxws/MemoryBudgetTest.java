@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link MemoryBudget}.
+ *
+ * @author Christer Sandberg
+ */
+public class MemoryBudgetTest {
+
+    @Test
+    public void tryReserveAlwaysAdmitsWhenNothingIsReserved() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(1000));
+        assertFalse(budget.tryReserve(1));
+        assertEquals(1000, budget.getUsed());
+
+        budget.release(1000);
+        assertTrue(budget.tryReserve(60));
+        assertTrue(budget.tryReserve(40));
+        assertFalse(budget.tryReserve(1));
+        assertEquals(100, budget.getUsed());
+    }
+
+    @Test
+    public void highWaterMarkAndCounters() {
+        MemoryBudget budget = new MemoryBudget(100, true);
+        budget.reserve(40);
+        assertTrue(budget.tryReserve(50));
+        budget.release(50);
+        budget.reserve(30);
+        assertEquals(70, budget.getUsed());
+        assertEquals(90, budget.getHighWaterMark());
+
+        budget.reserve(200);
+        budget.release(270);
+        assertEquals(0, budget.getUsed());
+        assertEquals(270, budget.getHighWaterMark());
+
+        assertEquals(0, budget.getSuspensions());
+        assertEquals(0, budget.getRejections());
+        budget.suspended();
+        budget.rejected();
+        budget.rejected();
+        assertEquals(1, budget.getSuspensions());
+        assertEquals(2, budget.getRejections());
+    }
+
+    @Test
+    public void waiterIsRunOnceWhenMemoryIsReleased() {
+        MemoryBudget budget = new MemoryBudget(100);
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable waiter = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+
+        assertTrue(budget.reserveOrAwait(80, waiter));
+        assertFalse(budget.reserveOrAwait(30, waiter));
+        assertEquals(0, runs.get());
+
+        budget.release(40);
+        budget.release(40);
+        assertEquals(1, runs.get());
+        assertTrue(budget.reserveOrAwait(30, waiter));
+    }
+
+    @Test
+    public void releaseBeforeWaiterIsAddedIsNotMissed() {
+        // Memory is released after the reservation fails, but before the waiter is added.
+        final AtomicInteger failures = new AtomicInteger();
+        MemoryBudget budget = new MemoryBudget(100) {
+            @Override
+            public boolean tryReserve(long bytes) {
+                boolean reserved = super.tryReserve(bytes);
+                if (!reserved && failures.incrementAndGet() == 1)
+                    release(80);
+
+                return reserved;
+            }
+        };
+
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable waiter = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+
+        budget.reserve(80);
+        assertTrue(budget.reserveOrAwait(30, waiter));
+        assertEquals(30, budget.getUsed());
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void waitersReleasingMemoryAreNotNotifiedRecursively() {
+        final MemoryBudget budget = new MemoryBudget(1);
+        final AtomicInteger reserved = new AtomicInteger();
+        budget.reserve(1);
+
+        // Each waiter releases memory again, which would overflow the stack if notified recursively.
+        int waiters = 100000;
+        for (int i = 0; i < waiters; i++) {
+            assertFalse(budget.reserveOrAwait(1, new Runnable() {
+                @Override
+                public void run() {
+                    if (budget.tryReserve(1)) {
+                        reserved.incrementAndGet();
+                        budget.release(1);
+                    }
+                }
+            }));
+        }
+
+        budget.release(1);
+        assertEquals(waiters, reserved.get());
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void raceBetweenReserveAndReleaseNeverStrandsWaiter() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(10);
+        final int iterations = 20000;
+        int threads = 8;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final Semaphore notified = new Semaphore(0);
+                        Runnable waiter = new Runnable() {
+                            @Override
+                            public void run() {
+                                notified.release();
+                            }
+                        };
+
+                        int waits = 0;
+                        for (int i = 0; i < iterations; i++) {
+                            // Only one request fits at a time, so most of them have to wait.
+                            while (!budget.reserveOrAwait(10, waiter)) {
+                                if (!notified.tryAcquire(5, TimeUnit.SECONDS))
+                                    throw new AssertionError("Waiter not notified after " + i + " iterations");
+
+                                waits++;
+                            }
+
+                            budget.release(10);
+                        }
+
+                        return waits;
+                    }
+                }));
+            }
+
+            for (Future<Integer> result : results)
+                result.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(0, budget.getUsed());
+        assertEquals(10, budget.getHighWaterMark());
+    }
+
+}
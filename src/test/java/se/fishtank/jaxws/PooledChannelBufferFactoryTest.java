@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PooledChannelBufferFactory}.
+ *
+ * @author Christer Sandberg
+ */
+public class PooledChannelBufferFactoryTest {
+
+    private static final int PORT = 4044;
+
+    @Test
+    public void releasedBuffersAreNotLeaks() throws Exception {
+        PooledChannelBufferFactory factory = new PooledChannelBufferFactory(false, 16, true);
+        List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+        for (int capacity = 1; capacity <= 1 << 21; capacity <<= 1)
+            buffers.add(factory.acquire(capacity));
+
+        for (ChannelBuffer buffer : buffers)
+            PooledChannelBufferFactory.release(buffer);
+
+        buffers.clear();
+        collectGarbage(factory, 0);
+
+        assertPoolBalanced(factory);
+        assertEquals(0, factory.getLeaks());
+    }
+
+    @Test
+    public void unreleasedBufferIsLeak() throws Exception {
+        PooledChannelBufferFactory factory = new PooledChannelBufferFactory(true, 16, true);
+        factory.acquire(1024).writeInt(42);
+
+        assertEquals(1, collectGarbage(factory, 1));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        PooledChannelBufferFactory factory = new PooledChannelBufferFactory(false);
+        ChannelBuffer buffer = factory.acquire(1000);
+        assertEquals(1000, buffer.capacity());
+        assertTrue(PooledChannelBufferFactory.release(buffer));
+        assertFalse(PooledChannelBufferFactory.release(buffer));
+
+        PooledChannelBufferFactory.release(factory.acquire(600));
+        assertEquals(1, factory.getAllocations());
+        assertEquals(1, factory.getReuses());
+    }
+
+    @Test
+    public void buffersThatAreNotAcquiredAreNotPooled() {
+        PooledChannelBufferFactory factory = new PooledChannelBufferFactory(true);
+        ChannelBuffer buffer = factory.getBuffer(1024);
+        assertFalse(buffer.isDirect());
+        assertFalse(PooledChannelBufferFactory.release(buffer));
+        assertEquals(0, factory.getAllocations());
+    }
+
+    @Test
+    public void abandonedResponseOutputIsReleased() throws Exception {
+        PooledChannelBufferFactory factory = new PooledChannelBufferFactory(false, 16, true);
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/echoService");
+        JaxwsConnection connection = new JaxwsConnection(request,
+                new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK),
+                JaxwsRequestUrl.newInstance(new InetSocketAddress("localhost", PORT), false, request), null, factory);
+
+        // Grow the buffer once and abandon the output without closing it.
+        OutputStream out = connection.getOutput();
+        out.write(new byte[5000]);
+        out.write(new byte[5000]);
+        connection.releaseOutput();
+        collectGarbage(factory, 0);
+
+        assertPoolBalanced(factory);
+        assertEquals(0, factory.getLeaks());
+    }
+
+    @Test
+    public void serverReleasesAllBuffers() throws Exception {
+        PooledChannelBufferFactory factory = new PooledChannelBufferFactory(false, 16, true);
+        Map<String, Object> mappings = new HashMap<String, Object>();
+        mappings.put("/echoService", new EchoWebService());
+
+        JaxWsServer server = new JaxWsServer();
+        server.setBufferFactory(factory);
+        assertTrue(server.start(new InetSocketAddress("localhost", PORT), mappings));
+        try {
+            String url = "http://localhost:" + PORT;
+            for (int i = 0; i < 20; i++)
+                assertEquals(200, post(url + "/echoService", echoRequest(i * 1000)));
+
+            assertEquals(200, get(url + "/echoService?wsdl"));
+            assertEquals(404, get(url + "/unknown"));
+            assertEquals(500, post(url + "/echoService", "<S:Envelope/>"));
+        } finally {
+            server.stop();
+        }
+
+        collectGarbage(factory, 0);
+
+        assertTrue(factory.getAllocations() > 0);
+        assertPoolBalanced(factory);
+        assertEquals(0, factory.getLeaks());
+    }
+
+    /**
+     * Asserts that every pooled buffer that was acquired is released.
+     */
+    private static void assertPoolBalanced(PooledChannelBufferFactory factory) {
+        assertEquals(factory.getAllocations() + factory.getReuses(), factory.getReleases());
+    }
+
+    /**
+     * Collect garbage until the expected number of leaks is found, and then a few more
+     * times so any unexpected leaks are found too.
+     */
+    private static long collectGarbage(PooledChannelBufferFactory factory, long expectedLeaks)
+            throws InterruptedException {
+        for (int i = 0; i < 20 && factory.getLeaks() < expectedLeaks; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        return factory.getLeaks();
+    }
+
+    private static String echoRequest(int size) {
+        StringBuilder value = new StringBuilder(size);
+        for (int i = 0; i < size; i++)
+            value.append('x');
+
+        return "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>" +
+                "<echoRequest xmlns=\"http://fishtank.se\" value=\"" + value + "\"/></S:Body></S:Envelope>";
+    }
+
+    private static int get(String url) throws IOException {
+        return exchange((HttpURLConnection) new URL(url).openConnection());
+    }
+
+    private static int post(String url, String envelope) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(envelope.getBytes("UTF-8"));
+        out.close();
+        return exchange(connection);
+    }
+
+    private static int exchange(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Discard the content.
+            }
+
+            in.close();
+        }
+
+        return status;
+    }
+
+}
@@ -0,0 +1,361 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jws.WebMethod;
+import javax.jws.WebParam;
+import javax.jws.WebResult;
+import javax.jws.WebService;
+import javax.jws.soap.SOAPBinding;
+
+import com.sun.xml.ws.transport.http.HttpAdapter;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link RequestCoalescer}.
+ *
+ * @author Christer Sandberg
+ */
+public class RequestCoalescerTest {
+
+    private static final int PORT = 4052;
+
+    private static final String ENVELOPE = "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<S:Body><echoRequest xmlns=\"http://fishtank.se\" value=\"x\"/></S:Body></S:Envelope>";
+
+    /** Number of identical requests, more than there are I/O threads on a small machine. */
+    private static final int REQUESTS = 5;
+
+    private Timer timer;
+
+    private HttpAdapter adapter;
+
+    private JaxWsServer server;
+
+    @Before
+    public void setUp() {
+        BlockingEchoWebService.reset();
+        timer = new HashedWheelTimer();
+    }
+
+    @After
+    public void tearDown() {
+        // Don't leave an invocation blocked if a test fails.
+        BlockingEchoWebService.release.countDown();
+        timer.stop();
+        if (adapter != null)
+            adapter.getEndpoint().dispose();
+
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void identicalRequestsInvokeImplementorOnce() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer(10, TimeUnit.SECONDS);
+        adapter = EndpointMappings.createEndpointAdapter(new BlockingEchoWebService());
+
+        final HttpResponse leaderResponse = newResponse();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> leader = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    HttpRequest request = newRequest();
+                    return coalescer.handle(adapter, newConnection(request, leaderResponse), request,
+                            leaderResponse, timer, new Outcome());
+                }
+            });
+
+            assertTrue(BlockingEchoWebService.entered.await(10, TimeUnit.SECONDS));
+
+            // The waiting requests don't block the calling thread.
+            List<HttpResponse> responses = new ArrayList<HttpResponse>();
+            List<Outcome> outcomes = new ArrayList<Outcome>();
+            for (int i = 1; i < REQUESTS; i++) {
+                HttpRequest request = newRequest();
+                HttpResponse response = newResponse();
+                Outcome outcome = new Outcome();
+                assertFalse(coalescer.handle(adapter, newConnection(request, response), request,
+                        response, timer, outcome));
+
+                responses.add(response);
+                outcomes.add(outcome);
+            }
+
+            BlockingEchoWebService.release.countDown();
+            assertTrue(leader.get(10, TimeUnit.SECONDS));
+            for (Outcome outcome : outcomes)
+                assertTrue(outcome.awaitResponseReady());
+
+            assertEquals(1, BlockingEchoWebService.invocations.get());
+            assertEquals(200, leaderResponse.getStatus().getCode());
+            String content = leaderResponse.getContent().toString(CharsetUtil.UTF_8);
+            assertTrue(content, content.contains("value=\"Hello x\""));
+
+            for (HttpResponse response : responses) {
+                assertEquals(leaderResponse.getStatus(), response.getStatus());
+                assertEquals(headers(leaderResponse), headers(response));
+                assertEquals(content, response.getContent().toString(CharsetUtil.UTF_8));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void waitingRequestsAreAbandonedWhenWaitTimesOut() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer(100, TimeUnit.MILLISECONDS);
+        adapter = EndpointMappings.createEndpointAdapter(new BlockingEchoWebService());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> leader = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    HttpRequest request = newRequest();
+                    HttpResponse response = newResponse();
+                    return coalescer.handle(adapter, newConnection(request, response), request,
+                            response, timer, new Outcome());
+                }
+            });
+
+            assertTrue(BlockingEchoWebService.entered.await(10, TimeUnit.SECONDS));
+
+            List<Outcome> outcomes = new ArrayList<Outcome>();
+            for (int i = 1; i < REQUESTS; i++) {
+                HttpRequest request = newRequest();
+                HttpResponse response = newResponse();
+                Outcome outcome = new Outcome();
+                assertFalse(coalescer.handle(adapter, newConnection(request, response), request,
+                        response, timer, outcome));
+
+                outcomes.add(outcome);
+            }
+
+            // Abandoned while the in-flight invocation is still blocked.
+            for (Outcome outcome : outcomes)
+                assertFalse(outcome.awaitResponseReady());
+
+            BlockingEchoWebService.release.countDown();
+            assertTrue(leader.get(10, TimeUnit.SECONDS));
+
+            // Completing the invocation doesn't notify the abandoned requests again.
+            for (Outcome outcome : outcomes)
+                assertEquals(1, outcome.notifications.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void waitingRequestsAreHandledWhenWaitTimesOut() throws Exception {
+        Map<String, Object> mappings = new HashMap<String, Object>();
+        mappings.put("/echoService", new BlockingEchoWebService());
+
+        server = new JaxWsServer();
+        server.setRequestCoalescer("/echoService", new RequestCoalescer(200, TimeUnit.MILLISECONDS));
+        assertTrue(server.start(new InetSocketAddress("localhost", PORT), mappings));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Integer> leader = executor.submit(new Post());
+            assertTrue(BlockingEchoWebService.entered.await(10, TimeUnit.SECONDS));
+
+            CompletionService<Integer> waiting = new ExecutorCompletionService<Integer>(executor);
+            for (int i = 1; i < REQUESTS; i++)
+                waiting.submit(new Post());
+
+            // Connections are spread over the I/O threads, so at least one of the waiting requests
+            // isn't on the blocked I/O thread, and is handled independently once the wait times out.
+            Future<Integer> first = waiting.poll(10, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertEquals(200, first.get().intValue());
+            assertFalse(leader.isDone());
+            assertTrue(BlockingEchoWebService.invocations.get() >= 2);
+
+            // The rest get a copy of the response, or are handled independently.
+            BlockingEchoWebService.release.countDown();
+            assertEquals(200, leader.get(10, TimeUnit.SECONDS).intValue());
+            for (int i = 2; i < REQUESTS; i++)
+                assertEquals(200, waiting.take().get(10, TimeUnit.SECONDS).intValue());
+
+            // Reading is resumed on the connections of the waiting requests, which are kept alive.
+            for (int i = 0; i < REQUESTS; i++)
+                waiting.submit(new Post());
+
+            for (int i = 0; i < REQUESTS; i++)
+                assertEquals(200, waiting.take().get(10, TimeUnit.SECONDS).intValue());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static HttpRequest newRequest() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/echoService");
+        request.setHeader(HttpHeaders.Names.HOST, "localhost:" + PORT);
+        request.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/xml; charset=utf-8");
+        request.setHeader("SOAPAction", "\"\"");
+        request.setContent(ChannelBuffers.copiedBuffer(ENVELOPE, CharsetUtil.UTF_8));
+        return request;
+    }
+
+    private static HttpResponse newResponse() {
+        return new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    }
+
+    private static List<String> headers(HttpResponse response) {
+        List<String> headers = new ArrayList<String>();
+        for (Map.Entry<String, String> header : response.getHeaders())
+            headers.add(header.getKey() + ": " + header.getValue());
+
+        return headers;
+    }
+
+    private JaxwsConnection newConnection(HttpRequest request, HttpResponse response) {
+        JaxwsRequestUrl url = JaxwsRequestUrl.newInstance(new InetSocketAddress("localhost", PORT), false, request);
+        return new JaxwsConnection(request, response, url, JaxwsHandler.createDelegate(adapter, url));
+    }
+
+    /**
+     * Records how a waiting request is completed.
+     */
+    private static final class Outcome implements RequestCoalescer.Listener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final AtomicInteger notifications = new AtomicInteger();
+
+        volatile boolean responseReady;
+
+        @Override
+        public void responseReady() {
+            responseReady = true;
+            notifications.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void invocationAbandoned() {
+            notifications.incrementAndGet();
+            done.countDown();
+        }
+
+        boolean awaitResponseReady() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            return responseReady;
+        }
+
+    }
+
+    /**
+     * Posts a request to the server and returns the response status.
+     */
+    private static final class Post implements Callable<Integer> {
+
+        @Override
+        public Integer call() throws Exception {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + PORT +
+                    "/echoService").openConnection();
+            connection.setReadTimeout(10000);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            out.write(ENVELOPE.getBytes("UTF-8"));
+            out.close();
+
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                while (in.read() != -1) {
+                    // Discard the content.
+                }
+
+                in.close();
+            }
+
+            return status;
+        }
+
+    }
+
+    /**
+     * Echo service whose first invocation blocks until it's released.
+     */
+    @WebService(name = "echo", portName = "echoPort",
+            serviceName = "echoService", targetNamespace = "http://fishtank.se")
+    @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE,
+            style = SOAPBinding.Style.DOCUMENT, use = SOAPBinding.Use.LITERAL)
+    public static class BlockingEchoWebService {
+
+        static final AtomicInteger invocations = new AtomicInteger();
+
+        static volatile CountDownLatch entered;
+
+        static volatile CountDownLatch release;
+
+        static void reset() {
+            invocations.set(0);
+            entered = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        @WebMethod
+        @WebResult(name = "echoResult", partName = "echoResult")
+        public Echo echo(@WebParam(name = "echoRequest", partName = "echoRequest") Echo echo) {
+            if (invocations.incrementAndGet() == 1) {
+                entered.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            echo.setValue("Hello " + echo.getValue());
+            return echo;
+        }
+
+    }
+
+}
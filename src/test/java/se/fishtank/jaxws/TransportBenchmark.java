@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2012, Christer Sandberg
+ */
+package se.fishtank.jaxws;
+
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.ws.Dispatch;
+import javax.xml.ws.Response;
+import javax.xml.ws.Service;
+import javax.xml.ws.soap.SOAPBinding;
+
+/**
+ * Compares the default JAX-WS client transport with {@link JaxwsHttpClient}
+ * by calling an embedded {@link JaxWsServer}.
+ * <p/>
+ * Arguments: {@code [threads] [calls per thread]}.
+ *
+ * @author Christer Sandberg
+ */
+public class TransportBenchmark {
+
+    private static final QName SERVICE = new QName("http://fishtank.se", "echoService");
+
+    private static final QName PORT = new QName("http://fishtank.se", "echoPort");
+
+    private static final String PAYLOAD = "<echoRequest xmlns=\"http://fishtank.se\" value=\"benchmark\"/>";
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        Map<String, Object> mappings = new HashMap<String, Object>(1);
+        mappings.put("/echoService", new EchoWebService());
+
+        JaxWsServer server = new JaxWsServer();
+        server.start(new InetSocketAddress("localhost", 4042), mappings);
+
+        JaxwsHttpClient client = new JaxwsHttpClient(threads, 1, 10, 60, TimeUnit.SECONDS);
+        try {
+            // Warm up both transports before measuring.
+            run("default (warm-up)", threads, calls / 4);
+            JaxwsHttpClient.install(client);
+            run("netty (warm-up)", threads, calls / 4);
+            JaxwsHttpClient.install(null);
+
+            run("default", threads, calls);
+            JaxwsHttpClient.install(client);
+            run("netty", threads, calls);
+            runAsync("netty async", threads * calls);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    private static Dispatch<Source> createDispatch() {
+        Service service = Service.create(SERVICE);
+        service.addPort(PORT, SOAPBinding.SOAP11HTTP_BINDING, "http://localhost:4042/echoService");
+        return service.createDispatch(PORT, Source.class, Service.Mode.PAYLOAD);
+    }
+
+    private static void run(String name, int threads, final int calls) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Dispatch<Source> dispatch = createDispatch();
+                    for (int n = 0; n < calls; n++)
+                        dispatch.invoke(new StreamSource(new StringReader(PAYLOAD)));
+
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<?> future : futures)
+            future.get();
+
+        report(name, threads * calls, System.nanoTime() - start);
+        executor.shutdown();
+    }
+
+    private static void runAsync(String name, int calls) throws Exception {
+        Dispatch<Source> dispatch = createDispatch();
+        List<Response<Source>> responses = new ArrayList<Response<Source>>(calls);
+
+        long start = System.nanoTime();
+        for (int n = 0; n < calls; n++)
+            responses.add(dispatch.invokeAsync(new StreamSource(new StringReader(PAYLOAD))));
+
+        for (Response<Source> response : responses)
+            response.get();
+
+        report(name, calls, System.nanoTime() - start);
+    }
+
+    private static void report(String name, int calls, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-20s %8d calls %10.1f calls/s %10.3f ms/call%n",
+                name, calls, calls / seconds, nanos / 1e6 / calls);
+    }
+
+}